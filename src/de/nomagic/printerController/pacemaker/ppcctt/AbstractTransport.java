@@ -0,0 +1,459 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** the parts that are the same for all connections to a client.
+ *
+ * A receive thread moves the received bytes into the receive buffer,
+ * getFrame() parses the frames out of it.
+ *
+ * If write coalescing is enabled sendRequest() only collects the frames.
+ * They are written with one call to writeData() on flush(), when the
+ * batch is full, when the oldest frame waited for the configured time,
+ * or before getFrame() waits for a reply.
+ *
+ * Line noise damages the requests before they get written, and the received
+ * bytes when they are taken out of the receive buffer, so that it works the
+ * same for all kinds of connections.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public abstract class AbstractTransport implements Transport
+{
+    // the receive thread wakes up at least this often to check if it should stop
+    public static final int RECEIVE_POLL_TIMEOUT_MS = 100;
+    // must be a power of two
+    public static final int RECEIVE_BUFFER_SIZE = 4096;
+    // maximum number of bytes that get written in one go if write coalescing is enabled.
+    public static final int WRITE_BATCH_SIZE = 4096;
+    // must be a power of two and bigger than 2 * FrameParser.MAX_FRAME_LENGTH (all bytes duplicated)
+    private static final int NOISY_RECEIVE_BUFFER_SIZE = 1024;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    protected final RingBuffer receiveBuffer = new RingBuffer(RECEIVE_BUFFER_SIZE);
+    private final FrameParser parser = new FrameParser();
+    private final byte[] parseChunk = new byte[FrameParser.MAX_FRAME_LENGTH];
+    private final ReplyView reply = new ReplyView();
+    private ReceiveThread receiver;
+    // write coalescing
+    private final Object batchLock = new Object();
+    private final byte[] batch = new byte[WRITE_BATCH_SIZE];
+    private int batchLength = 0;
+    private long batchDeadline = 0;
+    private long maxBatchDelayNs = 0;
+    private FlushThread flusher;
+    // line noise
+    private volatile LineNoise sendNoise = null;
+    private volatile LineNoise receiveNoise = null;
+    private final byte[] noisySendBuffer = new byte[2 * FrameParser.MAX_FRAME_LENGTH];
+    private final byte[] noiseIn = new byte[FrameParser.MAX_FRAME_LENGTH];
+    private final byte[] noiseOut = new byte[2 * FrameParser.MAX_FRAME_LENGTH];
+    // received bytes after the noise has been applied
+    private final RingBuffer noisyReceiveBuffer = new RingBuffer(NOISY_RECEIVE_BUFFER_SIZE);
+
+    public AbstractTransport()
+    {
+    }
+
+    @Override
+    public byte getCRCfor(final byte[] buf, int length, final int offset)
+    {
+        return Crc8.calculate(buf, offset, length);
+    }
+
+    @Override
+    public boolean sendRequest(byte[] data, int offset, int length)
+    {
+        if(true == log.isTraceEnabled())
+        {
+            log.trace("Sending Frame  : " + Tool.fromByteBufferToHexString(data, length, offset));
+        }
+        synchronized(batchLock)
+        {
+            final LineNoise noise = sendNoise;
+            if((null != noise) && (length <= FrameParser.MAX_FRAME_LENGTH))
+            {
+                length = noise.apply(data, offset, length, noisySendBuffer);
+                data = noisySendBuffer;
+                offset = 0;
+            }
+            if(0 == maxBatchDelayNs)
+            {
+                return writeData(data, offset, length);
+            }
+            if(batch.length - batchLength < length)
+            {
+                if(false == flushBatch())
+                {
+                    return false;
+                }
+                if(batch.length < length)
+                {
+                    return writeData(data, offset, length);
+                }
+            }
+            if(0 == batchLength)
+            {
+                batchDeadline = System.nanoTime() + maxBatchDelayNs;
+                batchLock.notifyAll();
+            }
+            System.arraycopy(data, offset, batch, batchLength, length);
+            batchLength = batchLength + length;
+            return true;
+        }
+    }
+
+    @Override
+    public void setLineNoise(LineNoise toClient, LineNoise fromClient)
+    {
+        sendNoise = toClient;
+        receiveNoise = fromClient;
+    }
+
+    @Override
+    public boolean flush()
+    {
+        synchronized(batchLock)
+        {
+            return flushBatch();
+        }
+    }
+
+    // must hold batchLock
+    private boolean flushBatch()
+    {
+        if(0 == batchLength)
+        {
+            return true;
+        }
+        final int num = batchLength;
+        batchLength = 0;
+        return writeData(batch, 0, num);
+    }
+
+    @Override
+    public void setWriteCoalescing(int maxDelayMs)
+    {
+        synchronized(batchLock)
+        {
+            flushBatch();
+            maxBatchDelayNs = 1000000L * Math.max(0, maxDelayMs);
+            if((0 < maxBatchDelayNs) && (null == flusher))
+            {
+                flusher = new FlushThread();
+                flusher.start();
+            }
+            batchLock.notifyAll();
+        }
+        if(0 == maxBatchDelayNs)
+        {
+            stopCoalescing();
+        }
+    }
+
+    /** writes what has been collected and stops collecting.
+     *
+     * Must be called before the connection gets closed.
+     */
+    protected void stopCoalescing()
+    {
+        final FlushThread oldFlusher;
+        synchronized(batchLock)
+        {
+            flushBatch();
+            maxBatchDelayNs = 0;
+            oldFlusher = flusher;
+            flusher = null;
+            batchLock.notifyAll();
+        }
+        if(null != oldFlusher)
+        {
+            try
+            {
+                oldFlusher.join();
+            }
+            catch(InterruptedException e)
+            {
+                // I don't care
+            }
+        }
+    }
+
+    /** writes the bytes to the client.
+     *
+     * @param data the bytes
+     * @param offset first byte is at this index.
+     * @param length number of bytes to write.
+     * @return true = success; false = failed to send
+     */
+    protected abstract boolean writeData(byte[] data, int offset, int length);
+
+    @Override
+    public ReplyView getFrame()
+    {
+        return getFrame(ReplyTimeouts.DEFAULT_FIRST_BYTE_MS * 1000000L,
+                        ReplyTimeouts.DEFAULT_INTER_BYTE_MS * 1000000L,
+                        ReplyTimeouts.DEFAULT_WHOLE_FRAME_MS * 1000000L);
+    }
+
+    @Override
+    public ReplyView getFrame(final long firstByteNs, final long interByteNs, final long wholeFrameNs)
+    {
+        // the reply can only come after the order has been send.
+        flush();
+        final long start = System.nanoTime();
+        final long frameDeadline = start + wholeFrameNs;
+        long byteDeadline = start + firstByteNs;
+        final long discardedBefore = parser.getNumberOfDiscardedBytes();
+        boolean complete = parser.processBacklog();
+        while(false == complete)
+        {
+            // nanoTime() may overflow -> only compare differences
+            final long deadline;
+            if(0 > frameDeadline - byteDeadline)
+            {
+                deadline = frameDeadline;
+            }
+            else
+            {
+                deadline = byteDeadline;
+            }
+            final int num = peekReceived(deadline);
+            if(0 == num)
+            {
+                if(true == parser.isInFrame())
+                {
+                    log.error("Timeout in the middle of a Frame !");
+                    parser.abortFrame();
+                }
+                reportDiscardedBytes(discardedBefore);
+                return null;
+            }
+            final int used = parser.push(parseChunk, 0, num);
+            skipReceived(used);
+            complete = parser.hasFrame();
+            if(true == parser.isInFrame())
+            {
+                byteDeadline = System.nanoTime() + interByteNs;
+            }
+        }
+        reportDiscardedBytes(discardedBefore);
+        reply.wrap(parser.getFrame(), 0, parser.getFrameLength());
+        if(true == log.isTraceEnabled())
+        {
+            log.trace("Received Frame : " + reply + " parsed : " + Protocol.parse(parser.getFrame()));
+        }
+        return reply;
+    }
+
+    /** copies received bytes into parseChunk.
+     *
+     * @param deadline wait until this time (System.nanoTime()) for bytes to arrive.
+     * @return number of bytes. 0 = timeout.
+     */
+    private int peekReceived(long deadline)
+    {
+        if(0 < noisyReceiveBuffer.available())
+        {
+            return noisyReceiveBuffer.peek(parseChunk, 0, parseChunk.length, deadline);
+        }
+        final LineNoise noise = receiveNoise;
+        if(null == noise)
+        {
+            return receiveBuffer.peek(parseChunk, 0, parseChunk.length, deadline);
+        }
+        // each byte must only pass the noise once -> take it out of the receive buffer.
+        int num = 0;
+        while(0 == num)
+        {
+            final int got = receiveBuffer.peek(noiseIn, 0, noiseIn.length, deadline);
+            if(0 == got)
+            {
+                return 0;
+            }
+            receiveBuffer.skip(got);
+            num = noise.apply(noiseIn, 0, got, noiseOut);
+        }
+        // the noisy buffer is empty and big enough
+        noisyReceiveBuffer.write(noiseOut, 0, num, 1);
+        return noisyReceiveBuffer.peek(parseChunk, 0, parseChunk.length, deadline);
+    }
+
+    private void skipReceived(int num)
+    {
+        if(0 < noisyReceiveBuffer.available())
+        {
+            noisyReceiveBuffer.skip(num);
+        }
+        else
+        {
+            receiveBuffer.skip(num);
+        }
+    }
+
+    private void reportDiscardedBytes(long discardedBefore)
+    {
+        final long discarded = parser.getNumberOfDiscardedBytes() - discardedBefore;
+        if(0 < discarded)
+        {
+            log.error("Received Invalid Data ! ({} bytes skipped)", discarded);
+        }
+    }
+
+    /**
+     * @return number of received bytes that did not belong to a valid frame.
+     */
+    public long getNumberOfDiscardedBytes()
+    {
+        return parser.getNumberOfDiscardedBytes();
+    }
+
+    /** starts the receive thread. Everything received before is dropped.
+     *
+     * @param name describes the connection.
+     */
+    protected void startReceiving(String name)
+    {
+        clearReceiveBuffer();
+        receiver = new ReceiveThread(name);
+        receiver.start();
+    }
+
+    /** drops everything that has been received so far.
+     *
+     */
+    protected void clearReceiveBuffer()
+    {
+        receiveBuffer.clear();
+        noisyReceiveBuffer.clear();
+        parser.reset();
+    }
+
+    protected void stopReceiving()
+    {
+        stopCoalescing();
+        if(null != receiver)
+        {
+            receiver.stopReceiving();
+            receiver = null;
+        }
+    }
+
+    /** waits for data from the client and puts it into the receive buffer.
+     *
+     * Called in a loop by the receive thread. Must return at least every
+     * RECEIVE_POLL_TIMEOUT_MS, even if nothing has been received.
+     *
+     * @throws IOException if the connection failed.
+     */
+    protected abstract void receiveData() throws IOException;
+
+    private class ReceiveThread extends Thread
+    {
+        private volatile boolean isRunning = true;
+
+        public ReceiveThread(String name)
+        {
+            super("Receive " + name);
+            setDaemon(true);
+        }
+
+        public void stopReceiving()
+        {
+            isRunning = false;
+            interrupt();
+            try
+            {
+                join(2 * RECEIVE_POLL_TIMEOUT_MS);
+            }
+            catch(InterruptedException e)
+            {
+                // I don't care
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while(true == isRunning)
+                {
+                    receiveData();
+                }
+            }
+            catch(IOException e)
+            {
+                if(true == isRunning)
+                {
+                    log.error("Receiving failed - Exception !");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /** writes the collected frames when the oldest has waited long enough. */
+    private class FlushThread extends Thread
+    {
+        public FlushThread()
+        {
+            super("Write coalescing");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            synchronized(batchLock)
+            {
+                while(this == flusher)
+                {
+                    try
+                    {
+                        if(0 == batchLength)
+                        {
+                            batchLock.wait();
+                        }
+                        else
+                        {
+                            final long remaining = batchDeadline - System.nanoTime();
+                            if(0 < remaining)
+                            {
+                                batchLock.wait(remaining / 1000000, (int)(remaining % 1000000));
+                            }
+                            else
+                            {
+                                flushBatch();
+                            }
+                        }
+                    }
+                    catch(InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,410 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** non blocking access to a client, shared by several producers.
+ *
+ * Orders can be submitted from any thread. One I/O thread sends them, keeps
+ * up to windowSize of them in flight and completes the futures when the
+ * replies arrive (matched by the sequence number). An order that does not
+ * get its reply in time fails with a TimeoutException.
+ *
+ * The orders wait in lanes (lock free queues). The I/O thread always takes
+ * the next order from the most important lane that has one. Orders in the
+ * urgent lane (stop print, reset) are send even if the window is full, as
+ * long as there are free sequence numbers. While orders are in flight the
+ * I/O thread waits at most URGENT_POLL_MS for the start of the next reply,
+ * so that an urgent order waits at most that long plus the time to receive
+ * a reply that has already started.
+ *
+ * An order that can not be send (parameter too long,..) fails on its own,
+ * the other orders are not affected.
+ *
+ * While the session is running the TransportLayerTest must not be used by
+ * anybody else.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class AsyncSession
+{
+    public static final long DEFAULT_TIMEOUT_MS = 1000;
+    public static final int IDLE_POLL_MS = 100;
+    public static final int URGENT_POLL_MS = 1;
+    private static final int SEQUENCE_MASK = Protocol.MAX_SEQUENCE_NUMBER;
+
+    /** stop print, reset,.. */
+    public static final int LANE_URGENT = 0;
+    /** requests that should not wait behind the bulk orders: status polls,.. */
+    public static final int LANE_NORMAL = 1;
+    /** everything else: streaming of movement orders,.. */
+    public static final int LANE_BULK = 2;
+    private static final int NUM_LANES = 3;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private final TransportLayerTest tlt;
+    private final int windowSize;
+    private final List<ConcurrentLinkedQueue<PendingOrder>> lanes;
+    private final AtomicLongArray sendOrders = new AtomicLongArray(NUM_LANES);
+    // only used by the I/O thread
+    private final PendingOrder[] inFlightOrders = new PendingOrder[Protocol.MAX_SEQUENCE_NUMBER + 1];
+    private int oldestSequenceNumber = 0;
+    private int inFlight = 0;
+    private volatile Thread ioThread;
+    private volatile boolean isRunning = false;
+
+    private static final class PendingOrder
+    {
+        final byte order;
+        final byte[] parameter;
+        final long timeoutNs;
+        final CompletableFuture<Reply> future = new CompletableFuture<Reply>();
+        long sendTime;
+        long deadline;
+
+        PendingOrder(byte order, byte[] parameter, long timeoutMs)
+        {
+            this.order = order;
+            this.parameter = parameter;
+            this.timeoutNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        }
+    }
+
+    /**
+     * @param tlt the orders are send through this
+     * @param windowSize maximum number of orders that may wait for their reply.
+     */
+    public AsyncSession(TransportLayerTest tlt, int windowSize)
+    {
+        this.tlt = tlt;
+        this.windowSize = Math.max(1, Math.min(windowSize, OrderPipeline.MAX_WINDOW_SIZE));
+        lanes = new ArrayList<ConcurrentLinkedQueue<PendingOrder>>(NUM_LANES);
+        for(int i = 0; i < NUM_LANES; i++)
+        {
+            lanes.add(new ConcurrentLinkedQueue<PendingOrder>());
+        }
+    }
+
+    /**
+     * @param order the order code
+     * @return the lane that the order uses if no lane is given.
+     */
+    public static int getLaneFor(byte order)
+    {
+        switch(order)
+        {
+        case Protocol.ORDER_STOP_PRINT:
+        case Protocol.ORDER_RESET:
+            return LANE_URGENT;
+
+        default:
+            return LANE_NORMAL;
+        }
+    }
+
+    public void start()
+    {
+        if(true == isRunning)
+        {
+            return;
+        }
+        isRunning = true;
+        ioThread = new Thread("Session I/O")
+        {
+            @Override
+            public void run()
+            {
+                runIo();
+            }
+        };
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /** stops the I/O thread. All orders that did not get their reply fail. */
+    public void close()
+    {
+        isRunning = false;
+        final Thread io = ioThread;
+        if(null != io)
+        {
+            LockSupport.unpark(io);
+            try
+            {
+                io.join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            ioThread = null;
+        }
+    }
+
+    public CompletableFuture<Reply> submit(byte order, byte[] parameter)
+    {
+        return submit(getLaneFor(order), order, parameter, DEFAULT_TIMEOUT_MS);
+    }
+
+    public CompletableFuture<Reply> submit(byte order, byte[] parameter, long timeoutMs)
+    {
+        return submit(getLaneFor(order), order, parameter, timeoutMs);
+    }
+
+    /**
+     * @param lane one of the LANE_* constants
+     * @param order the order code
+     * @param parameter the parameter bytes. Get copied. At most FrameBuilder.MAX_PARAMETER_LENGTH bytes.
+     * @param timeoutMs time from sending the order until the reply must have been received.
+     * @return gets completed with the reply, or exceptionally on timeout or error.
+     */
+    public CompletableFuture<Reply> submit(int lane, byte order, byte[] parameter, long timeoutMs)
+    {
+        if(FrameBuilder.MAX_PARAMETER_LENGTH < parameter.length)
+        {
+            final CompletableFuture<Reply> res = new CompletableFuture<Reply>();
+            res.completeExceptionally(new IllegalArgumentException(
+                    "Parameter too long (" + parameter.length + " bytes, max. "
+                    + FrameBuilder.MAX_PARAMETER_LENGTH + ") !"));
+            return res;
+        }
+        final PendingOrder po = new PendingOrder(order, parameter.clone(), timeoutMs);
+        if(false == isRunning)
+        {
+            po.future.completeExceptionally(new IOException("Session is not running !"));
+            return po.future;
+        }
+        final ConcurrentLinkedQueue<PendingOrder> queue = lanes.get(Math.max(LANE_URGENT, Math.min(lane, LANE_BULK)));
+        queue.offer(po);
+        if((false == isRunning) && (true == queue.remove(po)))
+        {
+            // closed while adding
+            po.future.completeExceptionally(new IOException("Session is not running !"));
+        }
+        final Thread io = ioThread;
+        if(null != io)
+        {
+            LockSupport.unpark(io);
+        }
+        return po.future;
+    }
+
+    /**
+     * @param lane one of the LANE_* constants
+     * @return number of orders that have been send from this lane.
+     */
+    public long getNumberOfSendOrders(int lane)
+    {
+        return sendOrders.get(lane);
+    }
+
+    private void runIo()
+    {
+        try
+        {
+            while(true == isRunning)
+            {
+                sendQueuedOrders();
+                if(0 == inFlight)
+                {
+                    if(true == hasQueuedOrders())
+                    {
+                        continue;
+                    }
+                    // submit() wakes us up
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(IDLE_POLL_MS));
+                    if(true == Thread.interrupted())
+                    {
+                        break;
+                    }
+                    continue;
+                }
+                // the next reply belongs to the oldest order, so that order's timeouts apply.
+                // Do not block urgent orders for the whole reply timeout.
+                final ReplyView frame = tlt.getAnyFrame(inFlightOrders[oldestSequenceNumber].order,
+                                                        TimeUnit.MILLISECONDS.toNanos(URGENT_POLL_MS));
+                if(null != frame)
+                {
+                    handleReply(frame);
+                }
+                expireOrders();
+            }
+        }
+        catch(RuntimeException e)
+        {
+            log.error("Session I/O failed !");
+            e.printStackTrace();
+        }
+        isRunning = false;
+        failAll(new IOException("Session has been closed !"));
+    }
+
+    private boolean hasQueuedOrders()
+    {
+        for(int i = 0; i < NUM_LANES; i++)
+        {
+            if(false == lanes.get(i).isEmpty())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendQueuedOrders()
+    {
+        while(true)
+        {
+            PendingOrder po = null;
+            int lane = LANE_URGENT;
+            // urgent orders may use all sequence numbers
+            if(inFlight < OrderPipeline.MAX_WINDOW_SIZE)
+            {
+                po = lanes.get(LANE_URGENT).poll();
+            }
+            if((null == po) && (inFlight < windowSize))
+            {
+                for(lane = LANE_NORMAL; lane < NUM_LANES; lane++)
+                {
+                    po = lanes.get(lane).poll();
+                    if(null != po)
+                    {
+                        break;
+                    }
+                }
+            }
+            if(null == po)
+            {
+                return;
+            }
+            send(po, lane);
+        }
+    }
+
+    private void send(PendingOrder po, int lane)
+    {
+        if(true == po.future.isDone())
+        {
+            // cancelled before it has been send
+            return;
+        }
+        final int sequenceNumber = tlt.getSequenceCounterValue();
+        try
+        {
+            tlt.startOrder(po.order).addBytes(po.parameter);
+            if(false == tlt.sendOrder())
+            {
+                po.future.completeExceptionally(new IOException("Failed to send order !"));
+                return;
+            }
+        }
+        catch(RuntimeException e)
+        {
+            // only this order fails, the session continues with the next one
+            log.error("Failed to send order {} !", po.order);
+            po.future.completeExceptionally(e);
+            return;
+        }
+        po.sendTime = System.nanoTime();
+        po.deadline = po.sendTime + po.timeoutNs;
+        if(0 == inFlight)
+        {
+            oldestSequenceNumber = sequenceNumber;
+        }
+        inFlightOrders[sequenceNumber] = po;
+        inFlight++;
+        tlt.IncrementSequenceCounter();
+        sendOrders.incrementAndGet(lane);
+    }
+
+    private void handleReply(ReplyView frame)
+    {
+        final int sequenceNumber = frame.getSequenceNumber();
+        final int pos = (sequenceNumber - oldestSequenceNumber) & SEQUENCE_MASK;
+        if(inFlight <= pos)
+        {
+            log.warn("Received reply with sequence number {} outside of the window !", sequenceNumber);
+            return;
+        }
+        // the client answers in order -> the replies to older orders will not come anymore.
+        for(int i = 0; i < pos; i++)
+        {
+            final PendingOrder po = removeOldest();
+            po.future.completeExceptionally(new IOException("Reply is missing !"));
+        }
+        final PendingOrder po = removeOldest();
+        tlt.getLatencies().record(po.order, System.nanoTime() - po.sendTime);
+        po.future.complete(new Reply(frame));
+    }
+
+    private void expireOrders()
+    {
+        final long now = System.nanoTime();
+        for(int i = 0; i < inFlight; i++)
+        {
+            final PendingOrder po = inFlightOrders[(oldestSequenceNumber + i) & SEQUENCE_MASK];
+            if(0 < now - po.deadline)
+            {
+                po.future.completeExceptionally(new TimeoutException("No reply to order " + po.order + " !"));
+            }
+        }
+        // expired orders at the start of the window do not need to wait for their reply anymore.
+        // Those in the middle keep their sequence number until the window moves.
+        while((0 < inFlight) && (true == inFlightOrders[oldestSequenceNumber].future.isDone()))
+        {
+            removeOldest();
+        }
+    }
+
+    private PendingOrder removeOldest()
+    {
+        final PendingOrder po = inFlightOrders[oldestSequenceNumber];
+        inFlightOrders[oldestSequenceNumber] = null;
+        oldestSequenceNumber = (oldestSequenceNumber + 1) & SEQUENCE_MASK;
+        inFlight--;
+        return po;
+    }
+
+    private void failAll(Exception cause)
+    {
+        while(0 < inFlight)
+        {
+            removeOldest().future.completeExceptionally(cause);
+        }
+        for(int i = 0; i < NUM_LANES; i++)
+        {
+            PendingOrder po = lanes.get(i).poll();
+            while(null != po)
+            {
+                po.future.completeExceptionally(cause);
+                po = lanes.get(i).poll();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.util.Vector;
+
+/** results of the link saturation test at several baud rates.
+ *
+ * For each baud rate the port is opened again and a short saturation test
+ * is run. A rate is clean if the client answered, and no frame receipt
+ * error, no reply timeout and no failed order happened.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class BaudRateSweep
+{
+    public static final int[] DEFAULT_BAUDRATES = {9600, 19200, 38400, 57600, 115200, 230400, 250000, 460800, 500000, 921600, 1000000};
+
+    private static final class Result
+    {
+        final int baudrate;
+        final String problem;
+        final SaturationTest saturation;
+        final LinkStatistics stats;
+        final LatencyHistogram latency;
+
+        Result(int baudrate, String problem, SaturationTest saturation, LinkStatistics stats, LatencyHistogram latency)
+        {
+            this.baudrate = baudrate;
+            this.problem = problem;
+            this.saturation = saturation;
+            this.stats = stats;
+            this.latency = latency;
+        }
+
+        boolean isClean()
+        {
+            return    (null == problem)
+                   && (0 == stats.getNumberOfReceiptErrors())
+                   && (0 == stats.getNumberOfReplyTimeouts())
+                   && (0 == stats.getNumberOfFailedOrders())
+                   && (0 == saturation.getNumberOfFailedPipelines())
+                   && (0 < stats.getNumberOfReceivedFrames());
+        }
+    }
+
+    private final Vector<Result> results = new Vector<Result>();
+
+    public BaudRateSweep()
+    {
+    }
+
+    /**
+     * @param list comma separated baud rates, or "default" for DEFAULT_BAUDRATES.
+     * @return the baud rates, or null if the list is invalid.
+     */
+    public static int[] parseBaudrates(String list)
+    {
+        if(true == "default".equals(list))
+        {
+            return DEFAULT_BAUDRATES.clone();
+        }
+        final String[] parts = list.split(",");
+        final int[] res = new int[parts.length];
+        try
+        {
+            for(int i = 0; i < parts.length; i++)
+            {
+                res[i] = Integer.parseInt(parts[i].trim());
+                if(0 >= res[i])
+                {
+                    return null;
+                }
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            return null;
+        }
+        return res;
+    }
+
+    /** the port could not be opened, or the client did not answer.
+     *
+     * @param baudrate the tested baud rate
+     * @param problem what went wrong
+     */
+    public void addFailure(int baudrate, String problem)
+    {
+        results.add(new Result(baudrate, problem, null, null, null));
+    }
+
+    /**
+     * @param baudrate the tested baud rate
+     * @param saturation the finished test
+     * @param tlt the connection that the test used.
+     */
+    public void addResult(int baudrate, SaturationTest saturation, TransportLayerTest tlt)
+    {
+        results.add(new Result(baudrate, null, saturation, tlt.getLinkStatistics(),
+                               tlt.getLatencies().getHistogram(SaturationTest.ORDER)));
+    }
+
+    /**
+     * @return the highest baud rate that worked without errors. 0 if none did.
+     */
+    public int getFastestCleanBaudrate()
+    {
+        int res = 0;
+        for(Result r : results)
+        {
+            if((true == r.isClean()) && (r.baudrate > res))
+            {
+                res = r.baudrate;
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        boolean hasBaudrate = true;
+        sb.append("   baud | replies/s |  bytes/s |   usage |   p50 ms |   p99 ms | receipt err | timeouts | retrans. | failed\n");
+        for(Result r : results)
+        {
+            if(null != r.problem)
+            {
+                sb.append(String.format("%7d | %s\n", r.baudrate, r.problem));
+                continue;
+            }
+            final double bytesPerSecond = r.saturation.getSentBytesPerSecond() + r.saturation.getReceivedBytesPerSecond();
+            final double usage = Math.max(r.saturation.getEfficiency(r.saturation.getSentBytesPerSecond()),
+                                          r.saturation.getEfficiency(r.saturation.getReceivedBytesPerSecond()));
+            double p50 = 0.0;
+            double p99 = 0.0;
+            if(null != r.latency)
+            {
+                p50 = r.latency.getValueAtPercentile(50.0) / 1000000.0;
+                p99 = r.latency.getValueAtPercentile(99.0) / 1000000.0;
+            }
+            String usageText = String.format("%6.1f%%", usage);
+            if(0 > usage)
+            {
+                // pseudo terminal: the baud rate is ignored
+                hasBaudrate = false;
+                usageText = "    n/a";
+            }
+            sb.append(String.format("%7d | %9.1f | %8.1f | %s | %8.3f | %8.3f | %11d | %8d | %8d | %6d%s\n",
+                                    r.baudrate, r.saturation.getReceivedFramesPerSecond(), bytesPerSecond, usageText,
+                                    p50, p99, r.stats.getNumberOfReceiptErrors(), r.stats.getNumberOfReplyTimeouts(),
+                                    r.stats.getNumberOfRetransmissions(),
+                                    r.stats.getNumberOfFailedOrders() + r.saturation.getNumberOfFailedPipelines(),
+                                    (true == r.isClean()) ? "" : "  <- errors"));
+        }
+        if(false == hasBaudrate)
+        {
+            sb.append("The link has no real baud rate (pseudo terminal), the results do not depend on the baud rate !\n");
+        }
+        final int fastest = getFastestCleanBaudrate();
+        if(0 == fastest)
+        {
+            sb.append("No baud rate worked without errors !\n");
+        }
+        else
+        {
+            sb.append("Fastest baud rate without errors : " + fastest + "\n");
+        }
+        return sb.toString();
+    }
+
+}
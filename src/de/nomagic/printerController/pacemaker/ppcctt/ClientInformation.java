@@ -15,6 +15,8 @@
 package de.nomagic.printerController.pacemaker.ppcctt;
 
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.Vector;
 
 import org.slf4j.Logger;
@@ -46,6 +48,10 @@ public class ClientInformation
     private int ProtocolVersionMinor = -1;
     private HashMap<Integer, Integer> NumberDevices = new HashMap<Integer, Integer>();
     private boolean canDeactivateStepperControl;
+    // -1 = has not been measured
+    private int maxFrameLength = -1;
+    // frame length -> payload bytes per second
+    private TreeMap<Integer, Double> frameLengthThroughput = new TreeMap<Integer, Double>();
 
     @Override
     public String toString()
@@ -115,6 +121,19 @@ public class ClientInformation
         res.append("Hardware Revision    : " + HardwareRevision + "\n");
         res.append("Step Rate max.       : " + maxStepRate + " Steps/sec\n");
         res.append("Host Timeout         : " + hostTimeout + " sec\n");
+        if(-1 != maxFrameLength)
+        {
+            res.append("Frame Length max.    : " + maxFrameLength + " bytes\n");
+            for(Map.Entry<Integer, Double> entry : frameLengthThroughput.entrySet())
+            {
+                res.append(String.format("  %3d byte frames    : %10.1f payload bytes/sec\n",
+                                         entry.getKey(), entry.getValue()));
+            }
+            if(-1 != getBestFrameLength())
+            {
+                res.append("best Frame Length    : " + getBestFrameLength() + " bytes\n");
+            }
+        }
         res.append("has these Devices    :\n");
         res.append(NumberDevices.get(1) + " Switch Inputs\n");
         res.append(NumberDevices.get(2) + " Switch Outputs\n");
@@ -226,6 +245,46 @@ public class ClientInformation
         canDeactivateStepperControl = b;
     }
 
+    /**
+     * @param length longest order frame (sync byte to CRC) that the client accepted.
+     */
+    public void setMaxFrameLength(int length)
+    {
+        maxFrameLength = length;
+    }
+
+    public int getMaxFrameLength()
+    {
+        return maxFrameLength;
+    }
+
+    /**
+     * @param frameLength length of the order frames (sync byte to CRC)
+     * @param payloadBytesPerSecond parameter bytes per second that the client accepted.
+     */
+    public void setFrameLengthThroughput(int frameLength, double payloadBytesPerSecond)
+    {
+        frameLengthThroughput.put(frameLength, payloadBytesPerSecond);
+    }
+
+    /**
+     * @return the frame length with the most payload bytes per second. -1 if not measured.
+     */
+    public int getBestFrameLength()
+    {
+        int res = -1;
+        double best = 0.0;
+        for(Map.Entry<Integer, Double> entry : frameLengthThroughput.entrySet())
+        {
+            if(entry.getValue() > best)
+            {
+                best = entry.getValue();
+                res = entry.getKey();
+            }
+        }
+        return res;
+    }
+
     public int getNumberOfDevices(int deviceType)
     {
         Integer res = NumberDevices.get(deviceType);  // to avoid null Pointer Exception
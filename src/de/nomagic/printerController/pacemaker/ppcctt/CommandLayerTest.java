@@ -20,6 +20,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.util.Vector;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +39,8 @@ public class CommandLayerTest
     private boolean success = true;
     private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
     private final String FirmwareConfigurationFileName;
+    private int windowSize = 1;
+    private boolean probeFrameLength = false;
 
     public CommandLayerTest(TransportLayerTest tlt, ClientInformation dutInfo, String FirmwareConfigurationFileName)
     {
@@ -46,10 +49,32 @@ public class CommandLayerTest
         this.FirmwareConfigurationFileName = FirmwareConfigurationFileName;
     }
 
+    /**
+     * @param windowSize number of orders that may be send before the first reply has been received.
+     */
+    public void setWindowSize(int windowSize)
+    {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @param probe true = also search the longest frame the client accepts (takes a few seconds).
+     */
+    public void setFrameLengthProbe(boolean probe)
+    {
+        probeFrameLength = probe;
+    }
+
+    private void reportPipeline(OrderPipeline pipe)
+    {
+        log.debug("{} orders with a window of {} : {} orders/second",
+                  pipe.getNumberOfOrders(), pipe.getWindowSize(), String.format("%.1f", pipe.getOrdersPerSecond()));
+    }
+
     private void prepare()
     {
         // make sure we did not receive something already
-        byte[] response = tlt.getFrame();
+        ReplyView response = tlt.getFrame();
         if(null != response)
         {
             log.error("Did receive something unexpectedly !");
@@ -68,9 +93,20 @@ public class CommandLayerTest
         if(true == success) testConfigureAxisMovementRates();
         if(true == success) testConfigureMovementUnderrunAvoidanceParameters();
         if(true == success) testActivateStepperControl();
+        if((true == success) && (true == probeFrameLength)) testFrameLength();
         return success;
     }
 
+    private void testFrameLength()
+    {
+        log.debug("Starting Test: maximum Frame Length");
+        final FrameLengthProbe probe = new FrameLengthProbe(tlt, windowSize);
+        if(false == probe.run(dutInfo))
+        {
+            success = false;
+        }
+    }
+
     private void applyFirmwareConfiguration()
     {
         log.debug("Startiing Test: Applying Firmware Configuration");
@@ -121,8 +157,11 @@ public class CommandLayerTest
         }
     }
 
-    private boolean applyFirmwareConfigurationFrom(String fileName, TransportLayerTest tlt)
+    private boolean applyFirmwareConfigurationFrom(String fileName, final TransportLayerTest tlt)
     {
+        final OrderPipeline pipe = new OrderPipeline(tlt, windowSize);
+        // settings that wait for their reply, oldest first. The replies come in order.
+        final Vector<String> unanswered = new Vector<String>();
         try
         {
             final BufferedReader br = new BufferedReader(
@@ -135,11 +174,38 @@ public class CommandLayerTest
                 curLine = removeCommentsFrom(curLine);
                 if(0 < curLine.length())
                 {
-                    String setting = getKeyFrom(curLine);
-                    String value = getValueFrom(curLine);
+                    final String setting = getKeyFrom(curLine);
+                    final String value = getValueFrom(curLine);
                     log.trace("Writing to Client : -{}- = -{}- !", setting, value);
-                    if(false == writeFirmwareConfigurationValue(setting, value, tlt))
+                    try
+                    {
+                        pipe.startOrder(Protocol.ORDER_WRITE_FIRMWARE_CONFIGURATION)
+                            .addStringWithLength(setting)
+                            .addString(value);
+                    }
+                    catch(IllegalArgumentException e)
                     {
+                        log.error("Failed to apply Firmware Setting {} = {} - too long for one frame !", setting, value);
+                        br.close();
+                        return false;
+                    }
+                    unanswered.add(setting + " = " + value);
+                    if(false == pipe.sendOrder(new OrderPipeline.ReplyHandler()
+                        {
+                            @Override
+                            public boolean handleReply(ReplyView response)
+                            {
+                                if(false == tlt.checkReply(response, Protocol.RESPONSE_OK, 0))
+                                {
+                                    return false;
+                                }
+                                unanswered.remove(0);
+                                return true;
+                            }
+                        }))
+                    {
+                        // sending waits for the replies to older orders, one of them might have failed.
+                        log.error("Failed to apply Firmware Setting {} !", unanswered.get(0));
                         br.close();
                         return false;
                     }
@@ -148,6 +214,12 @@ public class CommandLayerTest
                 curLine = br.readLine();
             }
             br.close();
+            if(false == pipe.waitForAllReplies())
+            {
+                log.error("Failed to apply Firmware Setting {} !", unanswered.get(0));
+                return false;
+            }
+            reportPipeline(pipe);
             return true;
         }
         catch(FileNotFoundException e)
@@ -161,41 +233,12 @@ public class CommandLayerTest
         return false;
     }
 
-    public boolean writeFirmwareConfigurationValue(String name, String value, TransportLayerTest tlt)
-    {
-        final byte[] nameBuf = name.getBytes(Charset.forName("UTF-8"));
-        final byte[] valueBuf = value.getBytes(Charset.forName("UTF-8"));
-        final byte[] parameter = new byte[nameBuf.length + valueBuf.length + 1];
-        parameter[0] = (byte)nameBuf.length;
-        for(int i = 0; i < nameBuf.length; i++)
-        {
-            parameter[i+1] = nameBuf[i];
-        }
-        for(int i = 0; i < valueBuf.length; i++)
-        {
-            parameter[i+nameBuf.length + 1] = valueBuf[i];
-        }
-        if(false == tlt.send(Protocol.ORDER_WRITE_FIRMWARE_CONFIGURATION, parameter))
-        {
-            log.error("Failed to write Firmware Setting {} = {} !", name, value);
-            return false;
-        }
-        byte[] response = tlt.getFrame();
-        if(false == tlt.checkReply(response, Protocol.RESPONSE_OK, 0))
-        {
-            log.error("Failed to apply Firmware Setting {} = {} !", name, value);
-            return false;
-        }
-        tlt.IncrementSequenceCounter();
-        return true;
-    }
-
     private void testConfigureAxisMovementRates()
     {
         log.debug("Startiing Test: Configure Axis Movement Rates");
         int numSteppers = dutInfo.getNumberOfDevices(Protocol.DEVICE_TYPE_STEPPER);
         // with all the steppers
-        byte[]  response;
+        ReplyView response;
         for(int i = 0; i < numSteppers; i++)
         {
             // 0 is not allowed
@@ -230,19 +273,13 @@ public class CommandLayerTest
         }
     }
 
-    private byte[] getParameterForUnderrunAvoidance(int StepperIndex, long maxMoveRate, long maxAccelleration)
+    private boolean sendUnderrunAvoidance(int StepperIndex, long maxMoveRate, long maxAccelleration)
     {
-        byte[] res = new byte[9];
-        res[0] = (byte)(0xff &  (StepperIndex + 1));
-        res[1] = (byte)(0xff & (maxMoveRate>>24));
-        res[2] = (byte)(0xff & (maxMoveRate>>16));
-        res[3] = (byte)(0xff & (maxMoveRate>>8));
-        res[4] = (byte)(0xff & (maxMoveRate));
-        res[5] = (byte)(0xff & (maxAccelleration>>24));
-        res[6] = (byte)(0xff & (maxAccelleration>>16));
-        res[7] = (byte)(0xff & (maxAccelleration>>8));
-        res[8] = (byte)(0xff & (maxAccelleration));
-        return res;
+        tlt.startOrder(Protocol.ORDER_CONFIGURE_MOVEMENT_UNDERRUN_AVOIDANCE_PARAMETERS)
+           .addU8(StepperIndex + 1)
+           .addU32(maxMoveRate)
+           .addU32(maxAccelleration);
+        return tlt.sendOrder();
     }
 
     private void testConfigureMovementUnderrunAvoidanceParameters()
@@ -253,15 +290,14 @@ public class CommandLayerTest
         for(int i = 0; i < numSteppers; i++)
         {
             // 0 is not allowed
-            tlt.send(Protocol.ORDER_CONFIGURE_MOVEMENT_UNDERRUN_AVOIDANCE_PARAMETERS,
-                     getParameterForUnderrunAvoidance(i, 0, 0));
-            byte[] response = tlt.getFrame();
+            sendUnderrunAvoidance(i, 0, 0);
+            ReplyView response = tlt.getFrame();
             if(false == tlt.checkReply(response, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, 1)) // TODO
             {
                 success = false;
                 return;
             }
-            if(Protocol.RESPONSE_BAD_PARAMETER_VALUE != response[1])
+            if(Protocol.RESPONSE_BAD_PARAMETER_VALUE != response.getU8(0))
             {
                 success = false;
                 return;
@@ -269,15 +305,14 @@ public class CommandLayerTest
             tlt.IncrementSequenceCounter();
 
             // 17 millions is probably too much
-            tlt.send(Protocol.ORDER_CONFIGURE_MOVEMENT_UNDERRUN_AVOIDANCE_PARAMETERS,
-                    getParameterForUnderrunAvoidance(i, 170000000, 0));
+            sendUnderrunAvoidance(i, 170000000, 0);
             response = tlt.getFrame();
             if(false == tlt.checkReply(response, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, 1))
             {
                 success = false;
                 return;
             }
-            if(Protocol.RESPONSE_BAD_PARAMETER_VALUE != response[1])
+            if(Protocol.RESPONSE_BAD_PARAMETER_VALUE != response.getU8(0))
             {
                 success = false;
                 return;
@@ -285,8 +320,7 @@ public class CommandLayerTest
             tlt.IncrementSequenceCounter();
 
             // 39000 should be ok.
-            tlt.send(Protocol.ORDER_CONFIGURE_MOVEMENT_UNDERRUN_AVOIDANCE_PARAMETERS,
-                    getParameterForUnderrunAvoidance(i, 39000, 10000));
+            sendUnderrunAvoidance(i, 39000, 10000);
             response = tlt.getFrame();
             if(false == tlt.checkReply(response, Protocol.RESPONSE_OK, 0))
             {
@@ -303,7 +337,7 @@ public class CommandLayerTest
         log.debug("Startiing Test: Activate Stepper Control");
         // Deactivate
         tlt.send(Protocol.ORDER_ACTIVATE_STEPPER_CONTROL, 0);
-        byte[] response = tlt.getFrame();
+        ReplyView response = tlt.getFrame();
         if(false == tlt.checkReply(response, Protocol.RESPONSE_OK, 0))
         {
             if(false == tlt.checkReply(response, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, 1))
@@ -328,18 +362,35 @@ public class CommandLayerTest
     private void testResuestDeviceCount()
     {
         log.debug("Startiing Test: Device Count");
+        final OrderPipeline pipe = new OrderPipeline(tlt, windowSize);
         for(int i = Protocol.DEVICE_TYPE_FIRST; i < Protocol.DEVICE_TYPE_LAST + 1; i++)
         {
-            tlt.send(Protocol.ORDER_REQUEST_DEVICE_COUNT, i);
-            byte[] response = tlt.getFrame();
-            if(false == tlt.checkReply(response, Protocol.RESPONSE_OK, 1))
+            final int deviceType = i;
+            pipe.startOrder(Protocol.ORDER_REQUEST_DEVICE_COUNT).addU8(deviceType);
+            if(false == pipe.sendOrder(new OrderPipeline.ReplyHandler()
+                {
+                    @Override
+                    public boolean handleReply(ReplyView response)
+                    {
+                        if(false == tlt.checkReply(response, Protocol.RESPONSE_OK, 1))
+                        {
+                            return false;
+                        }
+                        dutInfo.setDeviceCount(deviceType, response.getInteger(0, response.getParameterLength()));
+                        return true;
+                    }
+                }))
             {
                 success = false;
                 return;
             }
-            dutInfo.setDeviceCount(i, tlt.getIntegerFrom(response, 1, response.length -1));
-            tlt.IncrementSequenceCounter();
         }
+        if(false == pipe.waitForAllReplies())
+        {
+            success = false;
+            return;
+        }
+        reportPipeline(pipe);
     }
 
     private void testRequestInformation()
@@ -347,13 +398,13 @@ public class CommandLayerTest
         log.debug("Startiing Test: Request Information");
         // firmware name string
         tlt.send(Protocol.ORDER_REQ_INFORMATION, 0);
-        byte[] response = tlt.getFrame();
+        ReplyView response = tlt.getFrame();
         if(false == tlt.checkReply(response, Protocol.RESPONSE_OK, 0))
         {
             success = false;
             return;
         }
-        dutInfo.setFirmwareName(tlt.getStringFrom(response, 1, response.length -1));
+        dutInfo.setFirmwareName(response.getString(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // serial Number String
@@ -364,7 +415,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setSerialNumber(tlt.getStringFrom(response, 1, response.length -1));
+        dutInfo.setSerialNumber(response.getString(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // hardware name String
@@ -375,7 +426,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setHardwareName(tlt.getStringFrom(response, 1, response.length -1));
+        dutInfo.setHardwareName(response.getString(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // given name String or identity string
@@ -386,7 +437,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setGivenIdentity(tlt.getStringFrom(response, 1, response.length -1));
+        dutInfo.setGivenIdentity(response.getString(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // major Protocol Version
@@ -397,7 +448,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setProtocolVersionMajor(tlt.getIntegerFrom(response, 1, response.length -1));
+        dutInfo.setProtocolVersionMajor(response.getInteger(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // minor Protocol Version
@@ -408,7 +459,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setProtocolVersionMinor(tlt.getIntegerFrom(response, 1, response.length -1));
+        dutInfo.setProtocolVersionMinor(response.getInteger(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // list of supported protocol extensions
@@ -419,10 +470,10 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        int i = 1;
-        while(i < response.length)
+        int i = 0;
+        while(i < response.getParameterLength())
         {
-            dutInfo.addSupportedExtension(response[i]);
+            dutInfo.addSupportedExtension((byte)response.getU8(i));
             i++;
         }
         tlt.IncrementSequenceCounter();
@@ -435,7 +486,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setFirmwareType(tlt.getIntegerFrom(response, 1, response.length -1));
+        dutInfo.setFirmwareType(response.getInteger(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // Major Firmware Version
@@ -446,7 +497,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setFirmwareVersionMajor(tlt.getIntegerFrom(response, 1, response.length -1));
+        dutInfo.setFirmwareVersionMajor(response.getInteger(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // Minor Firmware Version
@@ -457,7 +508,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setFirmwareVersionMinor(tlt.getIntegerFrom(response, 1, response.length -1));
+        dutInfo.setFirmwareVersionMinor(response.getInteger(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // Hardware Type
@@ -468,7 +519,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setHardwareType(tlt.getIntegerFrom(response, 1, response.length -1));
+        dutInfo.setHardwareType(response.getInteger(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // Hardware Revision
@@ -479,7 +530,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setHardwareRevision(tlt.getIntegerFrom(response, 1, response.length -1));
+        dutInfo.setHardwareRevision(response.getInteger(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // max supported Step Rate
@@ -490,7 +541,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setMaxStepRate(tlt.getIntegerFrom(response, 1, response.length -1));
+        dutInfo.setMaxStepRate(response.getInteger(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
 
         // Host Timeout
@@ -501,7 +552,7 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        dutInfo.setHostTimeout(tlt.getIntegerFrom(response, 1, response.length -1));
+        dutInfo.setHostTimeout(response.getInteger(0, response.getParameterLength()));
         tlt.IncrementSequenceCounter();
     }
 
@@ -510,21 +561,21 @@ public class CommandLayerTest
         log.debug("Startiing Test: Stopped Mode");
         // Send request expect Stopped (As we are after a reset)
         tlt.send(Protocol.ORDER_REQ_INFORMATION, 0);
-        byte[] response = tlt.getFrame();
+        ReplyView response = tlt.getFrame();
         if(false == tlt.checkReply(response, Protocol.RESPONSE_STOPPED, 2))
         {
             success = false;
             return;
         }
-        if(response[1] != Protocol.RECOVERY_CLEARED)
+        if(response.getU8(0) != Protocol.RECOVERY_CLEARED)
         {
-            log.error("Reply has wrong Recovery Option ({})!", response[1]);
+            log.error("Reply has wrong Recovery Option ({})!", response.getU8(0));
             success = false;
             return;
         }
-        if(response[2] != Protocol.CAUSE_RESET)
+        if(response.getU8(1) != Protocol.CAUSE_RESET)
         {
-            log.error("Reply has wrong Stopped Cause ({})!", response[2]);
+            log.error("Reply has wrong Stopped Cause ({})!", response.getU8(1));
             success = false;
             return;
         }
@@ -537,15 +588,15 @@ public class CommandLayerTest
             success = false;
             return;
         }
-        if(response[1] != Protocol.RECOVERY_CLEARED)
+        if(response.getU8(0) != Protocol.RECOVERY_CLEARED)
         {
-            log.error("Reply has wrong Recovery Option ({})!", response[1]);
+            log.error("Reply has wrong Recovery Option ({})!", response.getU8(0));
             success = false;
             return;
         }
-        if(response[2] != Protocol.CAUSE_RESET)
+        if(response.getU8(1) != Protocol.CAUSE_RESET)
         {
-            log.error("Reply has wrong Stopped Cause ({})!", response[2]);
+            log.error("Reply has wrong Stopped Cause ({})!", response.getU8(1));
             success = false;
             return;
         }
@@ -0,0 +1,183 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** takes the debug frames (debug messages, new events) of the client.
+ *
+ * The receiving side only puts a copy of the frame into a queue and never
+ * waits. A thread of its own hands the frames to the listener. If the
+ * queue is full the frame gets dropped and counted.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class DebugChannel
+{
+    public static final int QUEUE_SIZE = 256;
+
+    /** gets the debug frames. Called by the thread of the channel. */
+    public interface Listener
+    {
+        void handleDebugFrame(Reply frame);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private final ArrayBlockingQueue<Reply> queue = new ArrayBlockingQueue<Reply>(QUEUE_SIZE);
+    private final AtomicLong numMessages = new AtomicLong();
+    private final AtomicLong numEvents = new AtomicLong();
+    private final AtomicLong numOther = new AtomicLong();
+    private final AtomicLong numDropped = new AtomicLong();
+    private volatile Listener listener;
+    private Thread consumer = null;
+
+    public DebugChannel()
+    {
+        // default: write the frames to the log
+        listener = new Listener()
+        {
+            @Override
+            public void handleDebugFrame(Reply frame)
+            {
+                final byte[] buf = frame.getFrame();
+                final String description = Protocol.parse(buf);
+                switch(frame.getReplyCode())
+                {
+                case Protocol.RESPONSE_DEBUG_FRAME_DEBUG_MESSAGE:
+                    log.info("Debug Message from Client : {}", description);
+                    break;
+
+                case Protocol.RESPONSE_DEBUG_FRAME_NEW_EVENT:
+                    log.info("Event from Client : {}", description);
+                    break;
+
+                default:
+                    log.debug("Debug Frame : {}", description);
+                    break;
+                }
+            }
+        };
+    }
+
+    public void setListener(Listener listener)
+    {
+        if(null != listener)
+        {
+            this.listener = listener;
+        }
+    }
+
+    /** hands a debug frame to the channel. Never blocks.
+     *
+     * @param frame the received debug frame. Gets copied.
+     */
+    public void offer(ReplyView frame)
+    {
+        switch(frame.getReplyCode())
+        {
+        case Protocol.RESPONSE_DEBUG_FRAME_DEBUG_MESSAGE: numMessages.incrementAndGet(); break;
+        case Protocol.RESPONSE_DEBUG_FRAME_NEW_EVENT: numEvents.incrementAndGet(); break;
+        default: numOther.incrementAndGet(); break;
+        }
+        startConsumer();
+        if(false == queue.offer(new Reply(frame)))
+        {
+            numDropped.incrementAndGet();
+        }
+    }
+
+    private synchronized void startConsumer()
+    {
+        if(null != consumer)
+        {
+            return;
+        }
+        consumer = new Thread("Debug Frames")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while(false == isInterrupted())
+                    {
+                        final Reply frame = queue.take();
+                        try
+                        {
+                            listener.handleDebugFrame(frame);
+                        }
+                        catch(RuntimeException e)
+                        {
+                            log.error("Handling of debug frame failed !");
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                catch(InterruptedException e)
+                {
+                    // -> stop
+                }
+            }
+        };
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /** stops the thread. Frames still in the queue are not handled. */
+    public synchronized void close()
+    {
+        if(null != consumer)
+        {
+            consumer.interrupt();
+            consumer = null;
+        }
+    }
+
+    public long getNumberOfDebugMessages()
+    {
+        return numMessages.get();
+    }
+
+    public long getNumberOfEvents()
+    {
+        return numEvents.get();
+    }
+
+    public long getNumberOfDroppedFrames()
+    {
+        return numDropped.get();
+    }
+
+    /**
+     * @return number of all debug frames received.
+     */
+    public long getNumberOfFrames()
+    {
+        return numMessages.get() + numEvents.get() + numOther.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d debug messages, %d events, %d other debug frames, %d dropped (queue full)",
+                             numMessages.get(), numEvents.get(), numOther.get(), numDropped.get());
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+/** encodes order frames directly into a reusable buffer.
+ *
+ * Usage: startOrder(), then the add*() methods for the parameters, then finish().
+ * All numbers are written big endian.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class FrameBuilder
+{
+    // Sync + Length + 255 bytes + CRC
+    public static final int MAX_FRAME_LENGTH = 258;
+    // everything but Sync, Length, Control, Order Code and CRC
+    public static final int MAX_PARAMETER_LENGTH = MAX_FRAME_LENGTH - Protocol.ORDER_POS_OF_START_OF_PARAMETER - 1;
+
+    private final byte[] buf = new byte[MAX_FRAME_LENGTH];
+    private int pos = 0;
+
+    public FrameBuilder()
+    {
+    }
+
+    /** starts a new frame. Everything in the buffer is overwritten.
+     *
+     * @param order the order code.
+     * @param control the control byte (sequence number).
+     * @return this
+     */
+    public FrameBuilder startOrder(final byte order, final int control)
+    {
+        buf[Protocol.ORDER_POS_OF_SYNC] = Protocol.START_OF_HOST_FRAME;
+        buf[Protocol.ORDER_POS_OF_LENGTH] = 0; // set in finish()
+        buf[Protocol.ORDER_POS_OF_CONTROL] = (byte)control;
+        buf[Protocol.ORDER_POS_OF_ORDER_CODE] = order;
+        pos = Protocol.ORDER_POS_OF_START_OF_PARAMETER;
+        return this;
+    }
+
+    public FrameBuilder addU8(final int value)
+    {
+        checkSpace(1);
+        buf[pos] = (byte)(0xff & value);
+        pos++;
+        return this;
+    }
+
+    public FrameBuilder addU16(final int value)
+    {
+        checkSpace(2);
+        buf[pos]     = (byte)(0xff & (value >> 8));
+        buf[pos + 1] = (byte)(0xff &  value);
+        pos = pos + 2;
+        return this;
+    }
+
+    public FrameBuilder addU32(final long value)
+    {
+        checkSpace(4);
+        buf[pos]     = (byte)(0xff & (value >> 24));
+        buf[pos + 1] = (byte)(0xff & (value >> 16));
+        buf[pos + 2] = (byte)(0xff & (value >> 8));
+        buf[pos + 3] = (byte)(0xff &  value);
+        pos = pos + 4;
+        return this;
+    }
+
+    public FrameBuilder addBytes(final byte[] data, final int offset, final int length)
+    {
+        checkSpace(length);
+        System.arraycopy(data, offset, buf, pos, length);
+        pos = pos + length;
+        return this;
+    }
+
+    public FrameBuilder addBytes(final byte[] data)
+    {
+        return addBytes(data, 0, data.length);
+    }
+
+    /** adds the UTF-8 encoded String.
+     *
+     * @param str the String
+     * @return this
+     */
+    public FrameBuilder addString(final String str)
+    {
+        int i = 0;
+        while(i < str.length())
+        {
+            final int c = str.codePointAt(i);
+            i = i + Character.charCount(c);
+            if(0x80 > c)
+            {
+                addU8(c);
+            }
+            else if(0x800 > c)
+            {
+                addU8(0xc0 | (c >> 6));
+                addU8(0x80 | (0x3f & c));
+            }
+            else if(0x10000 > c)
+            {
+                addU8(0xe0 | (c >> 12));
+                addU8(0x80 | (0x3f & (c >> 6)));
+                addU8(0x80 | (0x3f & c));
+            }
+            else
+            {
+                addU8(0xf0 | (c >> 18));
+                addU8(0x80 | (0x3f & (c >> 12)));
+                addU8(0x80 | (0x3f & (c >> 6)));
+                addU8(0x80 | (0x3f & c));
+            }
+        }
+        return this;
+    }
+
+    /** adds the UTF-8 encoded String with a one byte length in front.
+     *
+     * @param str the String
+     * @return this
+     */
+    public FrameBuilder addStringWithLength(final String str)
+    {
+        final int lengthPos = pos;
+        addU8(0);
+        addString(str);
+        buf[lengthPos] = (byte)(pos - lengthPos - 1);
+        return this;
+    }
+
+    /** sets the length byte and adds the CRC.
+     *
+     * @return number of bytes in the frame.
+     */
+    public int finish()
+    {
+        // Length = Control + Order Code + Parameter
+        buf[Protocol.ORDER_POS_OF_LENGTH] = (byte)(0xff & (pos - 2));
+        //Sync is not part of CRC
+        buf[pos] = Crc8.calculate(buf, 1, pos - 1);
+        pos++;
+        return pos;
+    }
+
+    public byte[] getBuffer()
+    {
+        return buf;
+    }
+
+    /**
+     * @return number of bytes in the frame (valid after finish()).
+     */
+    public int getLength()
+    {
+        return pos;
+    }
+
+    private void checkSpace(final int numBytes)
+    {
+        // one byte is needed for the CRC
+        if(MAX_FRAME_LENGTH - 1 < pos + numBytes)
+        {
+            throw new IllegalArgumentException("Frame too long !");
+        }
+    }
+
+}
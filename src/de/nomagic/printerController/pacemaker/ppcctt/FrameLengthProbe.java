@@ -0,0 +1,238 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** finds the longest order frame the client accepts and the best frame length for bulk transfers.
+ *
+ * The frames write a value to a firmware configuration setting that no
+ * firmware uses. The length byte allows frames of up to 258 bytes, but a
+ * client with a smaller receive buffer answers longer frames with "unable
+ * to accept frame" (or not at all). A binary search finds the longest
+ * accepted frame. Then frames of several lengths are streamed for a short
+ * time each to see how many parameter bytes per second the client takes.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class FrameLengthProbe
+{
+    public static final String SCRATCH_SETTING = "ppcctt_scratch";
+    /** frame with an empty value */
+    public static final int MIN_FRAME_LENGTH = LinkStatistics.FRAME_OVERHEAD + 1 + SCRATCH_SETTING.length();
+    public static final int THROUGHPUT_DURATION_MS = 500;
+    private static final int[] THROUGHPUT_FRAME_LENGTHS = {MIN_FRAME_LENGTH, 32, 64, 128, 192};
+    // other frame receipt errors are caused by the line, the same length gets tried again.
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private final TransportLayerTest tlt;
+    private final int windowSize;
+    private final byte[] filler = new byte[FrameBuilder.MAX_FRAME_LENGTH];
+    private long acceptedOrders = 0;
+
+    /**
+     * @param tlt the orders are send through this
+     * @param windowSize number of orders that may wait for their reply in the throughput measurement.
+     */
+    public FrameLengthProbe(TransportLayerTest tlt, int windowSize)
+    {
+        this.tlt = tlt;
+        this.windowSize = windowSize;
+        Arrays.fill(filler, (byte)'0');
+    }
+
+    /**
+     * @param dutInfo receives the longest frame and the throughput for each frame length.
+     * @return true = success; false = the client did not even accept the shortest frame.
+     */
+    public boolean run(ClientInformation dutInfo)
+    {
+        if(false == tlt.clearStoppedState())
+        {
+            return false;
+        }
+        final int maxLength = findMaxFrameLength();
+        if(0 > maxLength)
+        {
+            log.error("Client did not accept a frame of {} bytes !", MIN_FRAME_LENGTH);
+            return false;
+        }
+        dutInfo.setMaxFrameLength(maxLength);
+        for(int length : THROUGHPUT_FRAME_LENGTHS)
+        {
+            if(length < maxLength)
+            {
+                dutInfo.setFrameLengthThroughput(length, measureThroughput(length));
+            }
+        }
+        dutInfo.setFrameLengthThroughput(maxLength, measureThroughput(maxLength));
+        return true;
+    }
+
+    /**
+     * @return the longest accepted frame. -1 if even the shortest frame has not been accepted.
+     */
+    private int findMaxFrameLength()
+    {
+        int good;
+        if(true == isAccepted(FrameBuilder.MAX_FRAME_LENGTH))
+        {
+            good = FrameBuilder.MAX_FRAME_LENGTH;
+        }
+        else if(false == isAccepted(MIN_FRAME_LENGTH))
+        {
+            good = -1;
+        }
+        else
+        {
+            good = MIN_FRAME_LENGTH;
+            int bad = FrameBuilder.MAX_FRAME_LENGTH;
+            while(1 < bad - good)
+            {
+                final int length = (good + bad) / 2;
+                if(true == isAccepted(length))
+                {
+                    good = length;
+                }
+                else
+                {
+                    bad = length;
+                }
+            }
+        }
+        return good;
+    }
+
+    private void addScratchSetting(FrameBuilder frame, int frameLength)
+    {
+        frame.addStringWithLength(SCRATCH_SETTING).addBytes(filler, 0, frameLength - MIN_FRAME_LENGTH);
+    }
+
+    private boolean isAccepted(int frameLength)
+    {
+        for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++)
+        {
+            addScratchSetting(tlt.startOrder(Protocol.ORDER_WRITE_FIRMWARE_CONFIGURATION), frameLength);
+            if(false == tlt.sendOrder())
+            {
+                log.error("Failed to send order !");
+                return false;
+            }
+            final ReplyView reply = getReply();
+            if(null == reply)
+            {
+                log.debug("frame of {} bytes : no reply", frameLength);
+                // some clients do not answer frames that do not fit into their buffer
+                tlt.drainStaleReplies();
+                tlt.IncrementSequenceCounter();
+                return false;
+            }
+            final boolean receiptError = TransportLayerTest.isReceiptError(reply);
+            final boolean unableToAccept = (true == receiptError)
+                                        && (0 < reply.getParameterLength())
+                                        && (Protocol.RESPONSE_UNABLE_TO_ACCEPT_FRAME == reply.getU8(0));
+            tlt.IncrementSequenceCounter();
+            if(false == receiptError)
+            {
+                // the setting might not be known, but the frame has been received.
+                log.debug("frame of {} bytes : accepted", frameLength);
+                return true;
+            }
+            if(true == unableToAccept)
+            {
+                log.debug("frame of {} bytes : unable to accept", frameLength);
+                return false;
+            }
+        }
+        log.debug("frame of {} bytes : too many frame receipt errors", frameLength);
+        return false;
+    }
+
+    /** waits for the reply to the last order, without sending it again.
+     *
+     * getFrame() would count the expected rejections as frame receipt errors
+     * and failed orders and so spoil the statistics of the link.
+     *
+     * @return the reply, or null if the client did not answer.
+     */
+    private ReplyView getReply()
+    {
+        ReplyView reply = tlt.getAnyFrame();
+        while(null != reply)
+        {
+            if(   (true == TransportLayerTest.isReceiptError(reply))
+               || (reply.getSequenceNumber() == tlt.getSequenceCounterValue()) )
+            {
+                return reply;
+            }
+            log.debug("dropped reply with sequence number {}", reply.getSequenceNumber());
+            reply = tlt.getAnyFrame();
+        }
+        return null;
+    }
+
+    /**
+     * @param frameLength length of the order frames
+     * @return parameter bytes per second that the client accepted.
+     */
+    private double measureThroughput(int frameLength)
+    {
+        final OrderPipeline.ReplyHandler handler = new OrderPipeline.ReplyHandler()
+        {
+            @Override
+            public boolean handleReply(ReplyView reply)
+            {
+                if(false == TransportLayerTest.isReceiptError(reply))
+                {
+                    acceptedOrders++;
+                }
+                return true;
+            }
+        };
+        acceptedOrders = 0;
+        final long start = System.nanoTime();
+        final long end = start + 1000000L * THROUGHPUT_DURATION_MS;
+        OrderPipeline pipe = new OrderPipeline(tlt, windowSize);
+        while(0 < end - System.nanoTime())
+        {
+            addScratchSetting(pipe.startOrder(Protocol.ORDER_WRITE_FIRMWARE_CONFIGURATION), frameLength);
+            if(false == pipe.sendOrder(handler))
+            {
+                pipe = restart();
+            }
+        }
+        if(false == pipe.waitForAllReplies())
+        {
+            restart();
+        }
+        final long durationNs = System.nanoTime() - start;
+        final double res = acceptedOrders * (frameLength - LinkStatistics.FRAME_OVERHEAD) * 1000000000.0 / durationNs;
+        log.debug("frames of {} bytes : {} payload bytes/s", frameLength, String.format("%.1f", res));
+        return res;
+    }
+
+    private OrderPipeline restart()
+    {
+        // the replies to the orders of the failed pipeline must not be taken for the new orders
+        tlt.drainStaleReplies();
+        return new OrderPipeline(tlt, windowSize);
+    }
+
+}
@@ -0,0 +1,277 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+/** incremental parser for frames from the client.
+ *
+ * Bytes are pushed in as they arrive. The end of a frame is found by the
+ * length byte. If something is wrong with a frame (bad length, bad CRC,
+ * timeout) the parser drops the sync byte and searches the following bytes
+ * for the next sync byte, so that a frame that started inside the garbage
+ * is still found.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class FrameParser
+{
+    // Sync + Length + 255 bytes + CRC
+    public static final int MAX_FRAME_LENGTH = 258;
+
+    private static final int STATE_SYNC = 0;
+    private static final int STATE_LENGTH = 1;
+    private static final int STATE_CONTROL = 2;
+    private static final int STATE_PAYLOAD = 3;
+    private static final int STATE_CRC = 4;
+    private static final int STATE_COMPLETE = 5;
+
+    private final byte[] frame = new byte[MAX_FRAME_LENGTH];
+    private int pos = 0;
+    private int length = 0;
+    private int state = STATE_SYNC;
+    // CRC of the bytes received so far (Sync is not part of CRC)
+    private final Crc8 crc = new Crc8();
+
+    // bytes of a broken frame that need to be searched again for a sync byte
+    private final byte[] backlog = new byte[2 * MAX_FRAME_LENGTH];
+    private int backlogStart = 0;
+    private int backlogEnd = 0;
+
+    private long discardedBytes = 0;
+    private long lengthErrors = 0;
+    private long crcErrors = 0;
+
+    public FrameParser()
+    {
+    }
+
+    public void reset()
+    {
+        state = STATE_SYNC;
+        pos = 0;
+        backlogStart = 0;
+        backlogEnd = 0;
+    }
+
+    /** pushes received bytes into the parser.
+     *
+     * Stops after the last byte of a frame.
+     *
+     * @param data received bytes.
+     * @param offset first byte is at this index in data.
+     * @param num number of bytes in data.
+     * @return number of bytes that have been used. If less than num then a frame is complete.
+     */
+    public int push(final byte[] data, final int offset, final int num)
+    {
+        for(int i = 0; i < num; i++)
+        {
+            if(true == push(data[offset + i]))
+            {
+                return i + 1;
+            }
+        }
+        return num;
+    }
+
+    /** pushes a received byte into the parser.
+     *
+     * @param b the received byte.
+     * @return true if this byte completed a frame.
+     */
+    public boolean push(final byte b)
+    {
+        if(STATE_COMPLETE == state)
+        {
+            state = STATE_SYNC;
+        }
+        if(true == step(b))
+        {
+            return true;
+        }
+        // an error puts the bytes of the broken frame into the backlog
+        return processBacklog();
+    }
+
+    /** parses the bytes left over from a broken frame.
+     *
+     * Needs to be called before pushing new bytes, as a frame might already be
+     * complete from the bytes that arrived before.
+     *
+     * @return true if a frame is complete.
+     */
+    public boolean processBacklog()
+    {
+        if(STATE_COMPLETE == state)
+        {
+            state = STATE_SYNC;
+        }
+        while(backlogStart < backlogEnd)
+        {
+            final byte b = backlog[backlogStart];
+            backlogStart++;
+            if(true == step(b))
+            {
+                return true;
+            }
+        }
+        backlogStart = 0;
+        backlogEnd = 0;
+        return false;
+    }
+
+    /** gives up on the frame that is currently received (timeout).
+     *
+     */
+    public void abortFrame()
+    {
+        if((STATE_SYNC != state) && (STATE_COMPLETE != state))
+        {
+            resync();
+        }
+    }
+
+    /**
+     * @return true if the start of a frame has been received but the frame is not complete.
+     */
+    public boolean isInFrame()
+    {
+        return (STATE_SYNC != state) && (STATE_COMPLETE != state);
+    }
+
+    /**
+     * @return true if the last byte pushed completed a frame.
+     */
+    public boolean hasFrame()
+    {
+        return (STATE_COMPLETE == state);
+    }
+
+    /**
+     * @return the buffer holding the complete frame, starting with the sync byte at index 0.
+     * Only valid until the next byte is pushed.
+     */
+    public byte[] getFrame()
+    {
+        return frame;
+    }
+
+    /**
+     * @return number of bytes in the complete frame, including Sync and CRC.
+     */
+    public int getFrameLength()
+    {
+        return pos;
+    }
+
+    public long getNumberOfDiscardedBytes()
+    {
+        return discardedBytes;
+    }
+
+    public long getNumberOfLengthErrors()
+    {
+        return lengthErrors;
+    }
+
+    public long getNumberOfCrcErrors()
+    {
+        return crcErrors;
+    }
+
+    private boolean step(final byte b)
+    {
+        switch(state)
+        {
+        case STATE_SYNC:
+            if(Protocol.START_OF_CLIENT_FRAME == (0xff & b))
+            {
+                frame[0] = b;
+                pos = 1;
+                crc.reset();
+                state = STATE_LENGTH;
+            }
+            else
+            {
+                discardedBytes++;
+            }
+            return false;
+
+        case STATE_LENGTH:
+            frame[pos] = b;
+            pos++;
+            crc.update(b);
+            length = 0xff & b;
+            if(2 > length)
+            {
+                // Control and Reply Code are always there
+                lengthErrors++;
+                resync();
+            }
+            else
+            {
+                state = STATE_CONTROL;
+            }
+            return false;
+
+        case STATE_CONTROL:
+            frame[pos] = b;
+            pos++;
+            crc.update(b);
+            state = STATE_PAYLOAD;
+            return false;
+
+        case STATE_PAYLOAD:
+            frame[pos] = b;
+            pos++;
+            crc.update(b);
+            if(length + 2 == pos)
+            {
+                state = STATE_CRC;
+            }
+            return false;
+
+        case STATE_CRC:
+            frame[pos] = b;
+            pos++;
+            if(b == crc.getValue())
+            {
+                state = STATE_COMPLETE;
+                return true;
+            }
+            crcErrors++;
+            resync();
+            return false;
+
+        default:
+            return false;
+        }
+    }
+
+    private void resync()
+    {
+        // the sync byte was wrong, but the frame could start in one of the bytes after it.
+        discardedBytes++;
+        final int replay = pos - 1;
+        final int remaining = backlogEnd - backlogStart;
+        System.arraycopy(backlog, backlogStart, backlog, replay, remaining);
+        System.arraycopy(frame, 1, backlog, 0, replay);
+        backlogStart = 0;
+        backlogEnd = replay + remaining;
+        pos = 0;
+        state = STATE_SYNC;
+    }
+
+}
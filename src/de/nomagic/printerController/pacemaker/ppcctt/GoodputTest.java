@@ -0,0 +1,146 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+/** measures how many useful replies the client delivers per second.
+ *
+ * Sends requests for the firmware name as fast as the window allows. The
+ * goodput are the valid replies per second, the raw frame rate are all
+ * frames send per second, including the retransmissions. On a good link
+ * both are the same. If an order fails even after all retransmissions the
+ * measurement continues with the next order.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class GoodputTest
+{
+    private final TransportLayerTest tlt;
+    private final int windowSize;
+    private long validReplies = 0;
+    private long invalidReplies = 0;
+    private long failedPipelines = 0;
+    private long framesSend = 0;
+    private long durationNs = 0;
+
+    public GoodputTest(TransportLayerTest tlt, int windowSize)
+    {
+        this.tlt = tlt;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @param durationMs measure this long.
+     * @return true = measurement done; false = the client could not be prepared.
+     */
+    public boolean run(int durationMs)
+    {
+        // in stopped mode the requests would only get a "stopped" reply
+        if(false == tlt.clearStoppedState())
+        {
+            return false;
+        }
+
+        final LinkStatistics stats = tlt.getLinkStatistics();
+        final long ordersBefore = stats.getNumberOfOrders();
+        final long retransmissionsBefore = stats.getNumberOfRetransmissions();
+        final OrderPipeline.ReplyHandler handler = new OrderPipeline.ReplyHandler()
+        {
+            @Override
+            public boolean handleReply(ReplyView reply)
+            {
+                if(Protocol.RESPONSE_OK == reply.getReplyCode())
+                {
+                    validReplies++;
+                }
+                else
+                {
+                    invalidReplies++;
+                }
+                return true;
+            }
+        };
+        final long start = System.nanoTime();
+        final long end = start + 1000000L * durationMs;
+        OrderPipeline pipe = new OrderPipeline(tlt, windowSize);
+        while(0 < end - System.nanoTime())
+        {
+            pipe.startOrder(Protocol.ORDER_REQ_INFORMATION).addU8(Protocol.INFO_FIRMWARE_NAME_STRING);
+            if(false == pipe.sendOrder(handler))
+            {
+                pipe = restart();
+            }
+        }
+        if(false == pipe.waitForAllReplies())
+        {
+            restart();
+        }
+        durationNs = System.nanoTime() - start;
+        framesSend = (stats.getNumberOfOrders() - ordersBefore)
+                   + (stats.getNumberOfRetransmissions() - retransmissionsBefore);
+        return true;
+    }
+
+    private OrderPipeline restart()
+    {
+        failedPipelines++;
+        // the replies to the orders of the failed pipeline must not be taken for the new orders
+        tlt.drainStaleReplies();
+        return new OrderPipeline(tlt, windowSize);
+    }
+
+    /**
+     * @return valid replies per second.
+     */
+    public double getGoodput()
+    {
+        if(0 == durationNs)
+        {
+            return 0.0;
+        }
+        return validReplies * 1000000000.0 / durationNs;
+    }
+
+    /**
+     * @return frames send per second, including retransmissions.
+     */
+    public double getRawFrameRate()
+    {
+        if(0 == durationNs)
+        {
+            return 0.0;
+        }
+        return framesSend * 1000000000.0 / durationNs;
+    }
+
+    @Override
+    public String toString()
+    {
+        final double efficiency;
+        if(0 == framesSend)
+        {
+            efficiency = 0.0;
+        }
+        else
+        {
+            efficiency = (100.0 * validReplies) / framesSend;
+        }
+        return String.format("%d valid replies in %.3f s : goodput %.1f replies/s, raw %.1f frames/s (%.1f%% useful),"
+                             + " %d invalid replies, %d times all retransmissions failed",
+                             validReplies, durationNs / 1000000000.0, getGoodput(), getRawFrameRate(),
+                             efficiency, invalidReplies, failedPipelines);
+    }
+
+}
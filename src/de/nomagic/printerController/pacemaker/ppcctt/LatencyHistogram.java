@@ -0,0 +1,150 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+/** distribution of measured times with a fixed amount of memory.
+ *
+ * Each power of two is split into 16 buckets, so a value is known to about
+ * 6%. Times up to about half an hour (in nanoseconds) can be recorded, longer
+ * times end up in the last bucket. The maximum is kept exactly.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 36;
+    private static final int NUM_BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+    private final long[] counts = new long[NUM_BUCKETS];
+    private long numValues = 0;
+    private long maxValue = 0;
+    private long sum = 0;
+
+    public LatencyHistogram()
+    {
+    }
+
+    private static int getBucketFor(long value)
+    {
+        if(SUB_BUCKETS > value)
+        {
+            return (int)Math.max(0, value);
+        }
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = msb - SUB_BUCKET_BITS;
+        if(MAX_SHIFT < shift)
+        {
+            return NUM_BUCKETS - 1;
+        }
+        final int sub = (int)((value >>> shift) & (SUB_BUCKETS - 1));
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the biggest value that falls into the bucket.
+     */
+    private static long getHighestValueIn(int bucket)
+    {
+        if(SUB_BUCKETS > bucket)
+        {
+            return bucket;
+        }
+        final int shift = (bucket / SUB_BUCKETS) - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    public void record(long value)
+    {
+        counts[getBucketFor(value)]++;
+        numValues++;
+        sum = sum + value;
+        if(value > maxValue)
+        {
+            maxValue = value;
+        }
+    }
+
+    public long getNumberOfValues()
+    {
+        return numValues;
+    }
+
+    public long getMaxValue()
+    {
+        return maxValue;
+    }
+
+    public long getMeanValue()
+    {
+        if(0 == numValues)
+        {
+            return 0;
+        }
+        return sum / numValues;
+    }
+
+    /**
+     * @param percentile 0.0 .. 100.0
+     * @return the value that percentile of the values are less or equal to. (Upper end of the bucket)
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        if(0 == numValues)
+        {
+            return 0;
+        }
+        final long needed = Math.max(1, (long)Math.ceil((percentile / 100.0) * numValues));
+        long seen = 0;
+        for(int i = 0; i < NUM_BUCKETS; i++)
+        {
+            seen = seen + counts[i];
+            if(seen >= needed)
+            {
+                return Math.min(getHighestValueIn(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    public void reset()
+    {
+        for(int i = 0; i < NUM_BUCKETS; i++)
+        {
+            counts[i] = 0;
+        }
+        numValues = 0;
+        maxValue = 0;
+        sum = 0;
+    }
+
+    /**
+     * @return p50, p90, p99, p99.9 and max in milliseconds.
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("p50 %8.3f ms, p90 %8.3f ms, p99 %8.3f ms, p99.9 %8.3f ms, max %8.3f ms",
+                             getValueAtPercentile(50.0) / 1000000.0,
+                             getValueAtPercentile(90.0) / 1000000.0,
+                             getValueAtPercentile(99.0) / 1000000.0,
+                             getValueAtPercentile(99.9) / 1000000.0,
+                             maxValue / 1000000.0);
+    }
+
+}
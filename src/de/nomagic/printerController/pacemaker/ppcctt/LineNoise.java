@@ -0,0 +1,235 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.util.Random;
+
+/** simulates a bad cable in one direction.
+ *
+ * Each bit can flip, each byte can get lost or arrive twice, and a block of
+ * bytes can be held back for some time. The random numbers come from a
+ * seed, so that a run can be repeated.
+ *
+ * The definition is a comma separated list of:
+ * ber=probability that a bit flips
+ * drop=probability that a byte gets lost
+ * dup=probability that a byte arrives twice
+ * delay=probability:ms that a block gets held back for ms milliseconds
+ * seed=start value of the random numbers
+ * Example: ber=1e-4,drop=0.001,delay=0.01:20
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class LineNoise
+{
+    public static final long DEFAULT_SEED = 42;
+
+    private final Random rnd;
+    private final double bitErrorRate;
+    private final double dropRate;
+    private final double duplicateRate;
+    private final double delayRate;
+    private final int delayMs;
+    // statistics
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+    private long flippedBits = 0;
+    private long damagedBytes = 0;
+    private long droppedBytes = 0;
+    private long duplicatedBytes = 0;
+    private long delays = 0;
+
+    public LineNoise(double bitErrorRate, double dropRate, double duplicateRate,
+                     double delayRate, int delayMs, long seed)
+    {
+        this.bitErrorRate = bitErrorRate;
+        this.dropRate = dropRate;
+        this.duplicateRate = duplicateRate;
+        this.delayRate = delayRate;
+        this.delayMs = delayMs;
+        rnd = new Random(seed);
+    }
+
+    /**
+     * @param definition the values as described above.
+     * @return the noise, or null if the definition is invalid.
+     */
+    public static LineNoise parse(String definition)
+    {
+        double ber = 0.0;
+        double drop = 0.0;
+        double dup = 0.0;
+        double delay = 0.0;
+        int delayMs = 0;
+        long seed = DEFAULT_SEED;
+        try
+        {
+            for(String part : definition.split(","))
+            {
+                final String[] kv = part.split("=");
+                if(2 != kv.length)
+                {
+                    return null;
+                }
+                final String key = kv[0].trim();
+                final String value = kv[1].trim();
+                if(true == "ber".equals(key))
+                {
+                    ber = Double.parseDouble(value);
+                }
+                else if(true == "drop".equals(key))
+                {
+                    drop = Double.parseDouble(value);
+                }
+                else if(true == "dup".equals(key))
+                {
+                    dup = Double.parseDouble(value);
+                }
+                else if(true == "delay".equals(key))
+                {
+                    final String[] d = value.split(":");
+                    if(2 != d.length)
+                    {
+                        return null;
+                    }
+                    delay = Double.parseDouble(d[0]);
+                    delayMs = Integer.parseInt(d[1]);
+                }
+                else if(true == "seed".equals(key))
+                {
+                    seed = Long.parseLong(value);
+                }
+                else
+                {
+                    return null;
+                }
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            return null;
+        }
+        if(   (false == isProbability(ber)) || (false == isProbability(drop))
+           || (false == isProbability(dup)) || (false == isProbability(delay)) || (0 > delayMs) )
+        {
+            return null;
+        }
+        return new LineNoise(ber, drop, dup, delay, delayMs, seed);
+    }
+
+    private static boolean isProbability(double p)
+    {
+        return (0.0 <= p) && (1.0 >= p);
+    }
+
+    /** sends bytes over the bad line.
+     *
+     * If the block gets delayed this blocks the calling thread.
+     *
+     * @param src the bytes as send.
+     * @param offset first byte is at this index in src.
+     * @param length number of bytes.
+     * @param dst receives the bytes as they arrive. Must be at least 2 * length bytes long.
+     * @return number of bytes in dst.
+     */
+    public synchronized int apply(final byte[] src, final int offset, final int length, final byte[] dst)
+    {
+        if((0 < delayRate) && (rnd.nextDouble() < delayRate))
+        {
+            delays++;
+            try
+            {
+                Thread.sleep(delayMs);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        int num = 0;
+        for(int i = 0; i < length; i++)
+        {
+            if((0 < dropRate) && (rnd.nextDouble() < dropRate))
+            {
+                droppedBytes++;
+                continue;
+            }
+            byte b = src[offset + i];
+            if(0 < bitErrorRate)
+            {
+                final byte orig = b;
+                for(int bit = 0; bit < 8; bit++)
+                {
+                    if(rnd.nextDouble() < bitErrorRate)
+                    {
+                        b = (byte)(b ^ (1 << bit));
+                        flippedBits++;
+                    }
+                }
+                if(orig != b)
+                {
+                    damagedBytes++;
+                }
+            }
+            dst[num] = b;
+            num++;
+            if((0 < duplicateRate) && (rnd.nextDouble() < duplicateRate))
+            {
+                duplicatedBytes++;
+                dst[num] = b;
+                num++;
+            }
+        }
+        bytesIn = bytesIn + length;
+        bytesOut = bytesOut + num;
+        return num;
+    }
+
+    public synchronized long getNumberOfBytes()
+    {
+        return bytesIn;
+    }
+
+    /**
+     * @return number of bytes that have been damaged, lost or duplicated.
+     */
+    public synchronized long getNumberOfErrors()
+    {
+        return damagedBytes + droppedBytes + duplicatedBytes;
+    }
+
+    /**
+     * @return fraction of the bytes that have been damaged, lost or duplicated.
+     */
+    public synchronized double getErrorRate()
+    {
+        if(0 == bytesIn)
+        {
+            return 0.0;
+        }
+        return (double)getNumberOfErrors() / bytesIn;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%d bytes in, %d bytes out, %d bits flipped (%d bytes), %d bytes lost,"
+                             + " %d bytes duplicated, %d delays -> %.4f%% of the bytes damaged",
+                             bytesIn, bytesOut, flippedBits, damagedBytes, droppedBytes,
+                             duplicatedBytes, delays, 100.0 * getErrorRate());
+    }
+
+}
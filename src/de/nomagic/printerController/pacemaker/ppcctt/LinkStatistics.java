@@ -0,0 +1,193 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+/** counts the problems on the link to the client.
+ *
+ * On a good link all counters stay at zero. The more orders need to be
+ * send again, the worse the cable or the connection.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class LinkStatistics
+{
+    /** sync, length, control, order or reply code and CRC */
+    public static final int FRAME_OVERHEAD = Protocol.ORDER_POS_OF_START_OF_PARAMETER + 1;
+
+    private long numOrders = 0;
+    private long numReplyTimeouts = 0;
+    private long numReceiptErrors = 0;
+    private long numRetransmissions = 0;
+    private long numRetransmittedOrders = 0;
+    private long numStaleReplies = 0;
+    private long numFailedOrders = 0;
+    private long numSentFrames = 0;
+    private long numSentBytes = 0;
+    private long numReceivedFrames = 0;
+    private long numReceivedBytes = 0;
+
+    public LinkStatistics()
+    {
+    }
+
+    public void countOrder()
+    {
+        numOrders++;
+    }
+
+    /** no reply has been received in time. */
+    public void countReplyTimeout()
+    {
+        numReplyTimeouts++;
+    }
+
+    /** the client reported that it could not receive the order frame. */
+    public void countReceiptError()
+    {
+        numReceiptErrors++;
+    }
+
+    /**
+     * @param firstForThisOrder true if the order has not been send again before.
+     */
+    public void countRetransmission(boolean firstForThisOrder)
+    {
+        numRetransmissions++;
+        if(true == firstForThisOrder)
+        {
+            numRetransmittedOrders++;
+        }
+    }
+
+    /** a reply to a transmission that had already been given up. */
+    public void countStaleReply()
+    {
+        numStaleReplies++;
+    }
+
+    /** the order did not get a valid reply, even after all retransmissions. */
+    public void countFailedOrder()
+    {
+        numFailedOrders++;
+    }
+
+    /** an order frame (also a retransmission) has been written to the client. */
+    public void countSentFrame(int frameLength)
+    {
+        numSentFrames++;
+        numSentBytes = numSentBytes + frameLength;
+    }
+
+    /** a valid frame (also debug frames and stale replies) has been received. */
+    public void countReceivedFrame(int frameLength)
+    {
+        numReceivedFrames++;
+        numReceivedBytes = numReceivedBytes + frameLength;
+    }
+
+    public long getNumberOfSentFrames()
+    {
+        return numSentFrames;
+    }
+
+    public long getNumberOfSentBytes()
+    {
+        return numSentBytes;
+    }
+
+    /**
+     * @return sent bytes without the bytes of the frame (only the parameters).
+     */
+    public long getNumberOfSentPayloadBytes()
+    {
+        return numSentBytes - (FRAME_OVERHEAD * numSentFrames);
+    }
+
+    public long getNumberOfReceivedFrames()
+    {
+        return numReceivedFrames;
+    }
+
+    public long getNumberOfReceivedBytes()
+    {
+        return numReceivedBytes;
+    }
+
+    /**
+     * @return received bytes without the bytes of the frame (only the parameters).
+     */
+    public long getNumberOfReceivedPayloadBytes()
+    {
+        return numReceivedBytes - (FRAME_OVERHEAD * numReceivedFrames);
+    }
+
+    public long getNumberOfOrders()
+    {
+        return numOrders;
+    }
+
+    public long getNumberOfReplyTimeouts()
+    {
+        return numReplyTimeouts;
+    }
+
+    public long getNumberOfReceiptErrors()
+    {
+        return numReceiptErrors;
+    }
+
+    public long getNumberOfRetransmissions()
+    {
+        return numRetransmissions;
+    }
+
+    public long getNumberOfRetransmittedOrders()
+    {
+        return numRetransmittedOrders;
+    }
+
+    public long getNumberOfStaleReplies()
+    {
+        return numStaleReplies;
+    }
+
+    public long getNumberOfFailedOrders()
+    {
+        return numFailedOrders;
+    }
+
+    /**
+     * @return percentage of the orders that needed to be send again.
+     */
+    public double getRetransmissionRate()
+    {
+        if(0 == numOrders)
+        {
+            return 0.0;
+        }
+        return (100.0 * numRetransmittedOrders) / numOrders;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d orders, %d reply timeouts, %d frame receipt errors, %d retransmissions"
+                             + " (%.2f%% of the orders), %d stale replies, %d failed orders",
+                             numOrders, numReplyTimeouts, numReceiptErrors, numRetransmissions,
+                             getRetransmissionRate(), numStaleReplies, numFailedOrders);
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+/** the functions of the Linux C library that are used to talk to terminals directly.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public interface LinuxLibC extends Library
+{
+    LinuxLibC INSTANCE = (LinuxLibC) Native.loadLibrary("c", LinuxLibC.class);
+
+    int O_RDWR = 02;
+    int O_NOCTTY = 0400;
+    int TCSANOW = 0;
+    int TCIOFLUSH = 2;
+    short POLLIN = 0x0001;
+
+    // termios flags (octal as in bits/termios.h)
+    int INPCK = 0000020;
+    int CSIZE = 0000060;
+    int CS5 = 0000000;
+    int CS6 = 0000020;
+    int CS7 = 0000040;
+    int CS8 = 0000060;
+    int CSTOPB = 0000100;
+    int CREAD = 0000200;
+    int PARENB = 0000400;
+    int PARODD = 0001000;
+    int CLOCAL = 0004000;
+    int CMSPAR = 010000000000;
+    int CRTSCTS = 020000000000;
+    int VTIME = 5;
+    int VMIN = 6;
+
+    // modem lines (asm-generic/ioctls.h, asm-generic/termios.h)
+    int TIOCMGET = 0x5415;
+    int TIOCM_CTS = 0x020;
+
+    // serial driver settings (linux/serial.h)
+    int TIOCGSERIAL = 0x541E;
+    int TIOCSSERIAL = 0x541F;
+    int ASYNC_LOW_LATENCY = (1 << 13);
+    /** offset of flags in struct serial_struct. */
+    int SERIAL_STRUCT_FLAGS_OFFSET = 16;
+    /** struct serial_struct is smaller than this. */
+    int SERIAL_STRUCT_SIZE = 128;
+
+    /** struct termios of glibc.
+     */
+    public class Termios extends Structure
+    {
+        public int c_iflag;
+        public int c_oflag;
+        public int c_cflag;
+        public int c_lflag;
+        public byte c_line;
+        public byte[] c_cc = new byte[32];
+        public int c_ispeed;
+        public int c_ospeed;
+
+        @Override
+        protected List<String> getFieldOrder()
+        {
+            return Arrays.asList("c_iflag", "c_oflag", "c_cflag", "c_lflag", "c_line", "c_cc", "c_ispeed", "c_ospeed");
+        }
+    }
+
+    /** struct pollfd.
+     */
+    public class Pollfd extends Structure
+    {
+        public int fd;
+        public short events;
+        public short revents;
+
+        @Override
+        protected List<String> getFieldOrder()
+        {
+            return Arrays.asList("fd", "events", "revents");
+        }
+    }
+
+    int posix_openpt(int flags);
+    int grantpt(int fd);
+    int unlockpt(int fd);
+    String ptsname(int fd);
+
+    int open(String path, int flags);
+    int close(int fd);
+    NativeLong read(int fd, byte[] buf, NativeLong count);
+    NativeLong write(int fd, byte[] buf, NativeLong count);
+    NativeLong write(int fd, Pointer buf, NativeLong count);
+    int poll(Pollfd fds, int nfds, int timeout);
+    int ioctl(int fd, NativeLong request, Pointer arg);
+
+    int tcgetattr(int fd, Termios termios);
+    int tcsetattr(int fd, int optionalActions, Termios termios);
+    void cfmakeraw(Termios termios);
+    int cfsetspeed(Termios termios, int speed);
+    int tcflush(int fd, int queueSelector);
+    int tcdrain(int fd);
+}
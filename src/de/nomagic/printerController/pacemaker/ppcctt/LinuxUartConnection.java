@@ -0,0 +1,320 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+
+/** serial port that talks to the Linux tty driver directly.
+ *
+ * Uses the same descriptor as UartConnection. The port is put into raw
+ * mode and reads block in the driver (VMIN = 0, VTIME) until data arrives
+ * or the receive poll time is over. If the driver supports it the low
+ * latency mode is switched on, so that USB serial adapters (FTDI,..) pass
+ * received bytes on at once instead of waiting for their latency timer.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class LinuxUartConnection extends AbstractTransport
+{
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private LinuxLibC libc;
+    private volatile int fd = -1;
+    private final byte[] readBuffer = new byte[RECEIVE_BUFFER_SIZE];
+    private final NativeLong readBufferSize = new NativeLong(RECEIVE_BUFFER_SIZE);
+    private Memory writeBuffer = new Memory(WRITE_BATCH_SIZE);
+    private final Memory modemLines = new Memory(4);
+    private boolean useCts = false;
+
+    public LinuxUartConnection()
+    {
+        final Properties systemProperties = System.getProperties();
+        systemProperties.setProperty("jna.nosys", "true");
+    }
+
+    private int getControlFlagsFromDescriptor(String data)
+    {
+        int cflag = LinuxLibC.CREAD | LinuxLibC.CLOCAL;
+        switch(UartConnection.getDataBitIdxFromDescriptor(data))
+        {
+        case 0: cflag = cflag | LinuxLibC.CS5; break;
+        case 1: cflag = cflag | LinuxLibC.CS6; break;
+        case 2: cflag = cflag | LinuxLibC.CS7; break;
+        case 3:
+        default: cflag = cflag | LinuxLibC.CS8; break;
+        }
+        switch(UartConnection.getParityIdxFromDescriptor(data))
+        {
+        case 1: cflag = cflag | LinuxLibC.PARENB; break;
+        case 2: cflag = cflag | LinuxLibC.PARENB | LinuxLibC.PARODD; break;
+        case 3: cflag = cflag | LinuxLibC.PARENB | LinuxLibC.CMSPAR | LinuxLibC.PARODD; break;
+        case 4: cflag = cflag | LinuxLibC.PARENB | LinuxLibC.CMSPAR; break;
+        case 0:
+        default: break;
+        }
+        // 1.5 stop bits are only possible with 5 data bits and then CSTOPB means 1.5
+        if(0 != UartConnection.getStopBitIdxFromDescriptor(data))
+        {
+            cflag = cflag | LinuxLibC.CSTOPB;
+        }
+        if(   (true == UartConnection.getRtsCtsInFromDescriptor(data))
+           || (true == UartConnection.getRtsCtsOutFromDescriptor(data)) )
+        {
+            // the Linux driver can only switch both directions together
+            cflag = cflag | LinuxLibC.CRTSCTS;
+        }
+        return cflag;
+    }
+
+    private int getInputFlagsFromDescriptor(String data)
+    {
+        int iflag = 0;
+        if(0 != UartConnection.getParityIdxFromDescriptor(data))
+        {
+            iflag = iflag | LinuxLibC.INPCK;
+        }
+        return iflag;
+    }
+
+    /** switches the driver into low latency mode, if it knows that mode.
+     *
+     * @return true = low latency mode is active.
+     */
+    private boolean enableLowLatency(String PortName)
+    {
+        final Memory serial = new Memory(LinuxLibC.SERIAL_STRUCT_SIZE);
+        serial.clear();
+        if(0 != libc.ioctl(fd, new NativeLong(LinuxLibC.TIOCGSERIAL), serial))
+        {
+            log.info("{} does not support a low latency mode (errno {})", PortName, Native.getLastError());
+            return false;
+        }
+        final int flags = serial.getInt(LinuxLibC.SERIAL_STRUCT_FLAGS_OFFSET);
+        serial.setInt(LinuxLibC.SERIAL_STRUCT_FLAGS_OFFSET, flags | LinuxLibC.ASYNC_LOW_LATENCY);
+        if(0 != libc.ioctl(fd, new NativeLong(LinuxLibC.TIOCSSERIAL), serial))
+        {
+            log.info("{} refused the low latency mode (errno {})", PortName, Native.getLastError());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean establishConnectionTo(String data)
+    {
+        final String PortName = UartConnection.getPortNameFromDescriptor(data);
+        if(true == UartConnection.refuseXonXoff(data, log))
+        {
+            return false;
+        }
+        try
+        {
+            libc = LinuxLibC.INSTANCE;
+        }
+        catch(UnsatisfiedLinkError e)
+        {
+            log.error("The Linux serial driver is not available on this system !");
+            return false;
+        }
+        fd = libc.open(PortName, LinuxLibC.O_RDWR | LinuxLibC.O_NOCTTY);
+        if(0 > fd)
+        {
+            log.error("Could not open the port {} (errno {}) !", PortName, Native.getLastError());
+            return false;
+        }
+        final LinuxLibC.Termios tio = new LinuxLibC.Termios();
+        if(0 != libc.tcgetattr(fd, tio))
+        {
+            log.error("{} is not a serial port !", PortName);
+            close();
+            return false;
+        }
+        libc.cfmakeraw(tio);
+        tio.c_cflag = (tio.c_cflag & ~(LinuxLibC.CSIZE | LinuxLibC.CSTOPB | LinuxLibC.PARENB
+                                       | LinuxLibC.PARODD | LinuxLibC.CMSPAR | LinuxLibC.CRTSCTS))
+                      | getControlFlagsFromDescriptor(data);
+        tio.c_iflag = tio.c_iflag | getInputFlagsFromDescriptor(data);
+        // read() returns as soon as one byte is there, or after VTIME (in 1/10 seconds)
+        tio.c_cc[LinuxLibC.VMIN] = 0;
+        tio.c_cc[LinuxLibC.VTIME] = (byte)Math.max(1, RECEIVE_POLL_TIMEOUT_MS / 100);
+        if(0 != libc.cfsetspeed(tio, UartConnection.getBaudrateFromDescriptor(data)))
+        {
+            log.error("The Interface {} does not support the baudrate {} !",
+                      PortName, UartConnection.getBaudrateFromDescriptor(data));
+            close();
+            return false;
+        }
+        if(0 != libc.tcsetattr(fd, LinuxLibC.TCSANOW, tio))
+        {
+            log.error("The Interface {} does not support the requested parameters !", PortName);
+            close();
+            return false;
+        }
+        if(true == enableLowLatency(PortName))
+        {
+            log.info("{} is in low latency mode", PortName);
+        }
+        useCts = UartConnection.getRtsCtsOutFromDescriptor(data);
+        libc.tcflush(fd, LinuxLibC.TCIOFLUSH);
+        startReceiving(PortName);
+        log.info("Serial Port is open");
+        return true;
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return (0 <= fd);
+    }
+
+    @Override
+    public boolean close()
+    {
+        stopReceiving();
+        if(0 <= fd)
+        {
+            libc.close(fd);
+            fd = -1;
+            return true;
+        }
+        else
+        {
+            return false;
+        }
+    }
+
+    /** writes the bytes.
+     *
+     * With output flow control the bytes are written in chunks, see UartConnection.
+     */
+    @Override
+    protected boolean writeData(final byte[] data, int offset, int length)
+    {
+        if(0 > fd)
+        {
+            log.error("Failed to send Request - not connected !");
+            return false;
+        }
+        if(writeBuffer.size() < length)
+        {
+            writeBuffer = new Memory(length);
+        }
+        writeBuffer.write(0, data, offset, length);
+        if(false == useCts)
+        {
+            return write(0, length);
+        }
+        int done = 0;
+        while(done < length)
+        {
+            if((true == useCts) && (false == waitForCts()))
+            {
+                log.error("Failed to send Request - CTS stayed inactive !");
+                return false;
+            }
+            final int num = Math.min(UartConnection.FLOW_CONTROL_CHUNK_SIZE, length - done);
+            if(false == write(done, num))
+            {
+                return false;
+            }
+            // blocks until the driver has send the chunk. Blocks longer if the client stopped the transmission.
+            libc.tcdrain(fd);
+            done = done + num;
+        }
+        return true;
+    }
+
+    private boolean write(int offset, int length)
+    {
+        int written = 0;
+        while(written < length)
+        {
+            final int res = libc.write(fd, writeBuffer.share(offset + written), new NativeLong(length - written)).intValue();
+            if(0 > res)
+            {
+                log.error("Failed to send Request - errno {} !", Native.getLastError());
+                return false;
+            }
+            written = written + res;
+        }
+        return true;
+    }
+
+    /**
+     * @return true = CTS is active; false = CTS stayed inactive for UartConnection.CTS_TIMEOUT_MS.
+     */
+    private boolean waitForCts()
+    {
+        final long end = System.nanoTime() + 1000000L * UartConnection.CTS_TIMEOUT_MS;
+        while(false == isCts())
+        {
+            if(0 >= end - System.nanoTime())
+            {
+                return false;
+            }
+            try
+            {
+                // the driver has no event for CTS that would not need an extra thread -> poll
+                Thread.sleep(1);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isCts()
+    {
+        if(0 != libc.ioctl(fd, new NativeLong(LinuxLibC.TIOCMGET), modemLines))
+        {
+            // no modem lines (pseudo terminal,..) -> nothing stops us
+            return true;
+        }
+        return (0 != (modemLines.getInt(0) & LinuxLibC.TIOCM_CTS));
+    }
+
+    /** blocks in the driver until data arrived or VTIME is over. */
+    @Override
+    protected void receiveData() throws IOException
+    {
+        final int num = libc.read(fd, readBuffer, readBufferSize).intValue();
+        if(0 > num)
+        {
+            throw new IOException("Failed to read from serial port - errno " + Native.getLastError() + " !");
+        }
+        if(0 == num)
+        {
+            // VTIME over -> nothing happened
+            return;
+        }
+        if(num != receiveBuffer.write(readBuffer, 0, num, RECEIVE_POLL_TIMEOUT_MS))
+        {
+            log.warn("Receive Buffer is full !");
+        }
+    }
+
+}
@@ -0,0 +1,396 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** polls the client with a fixed rate, like a host that watches the printer.
+ *
+ * The orders of the mix are send one after the other at fixed points in
+ * time (start + n * period), no matter if the replies to the orders before
+ * have already arrived. The latency is measured from that planned point in
+ * time and not from the moment the order actually went out. If the client
+ * (or the window) is too slow the orders wait and that waiting is part of
+ * the latency, instead of being hidden by sending the next order later
+ * (coordinated omission).
+ *
+ * The search for the maximum rate doubles the rate until the client can
+ * not keep up anymore (an order failed or p99 of the latency is above the
+ * limit) and then narrows the range between the last good and the first
+ * bad rate.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class LoadTest
+{
+    public static final String DEFAULT_MIX = "temp,input,status";
+    public static final int DEFAULT_LATENCY_LIMIT_MS = 50;
+    public static final double START_RATE = 10.0;
+    public static final double MAX_RATE = 100000.0;
+    // the search stops if the bad rate is less than this much higher than the good rate
+    private static final double SEARCH_RESOLUTION = 0.05;
+    // waiting for the replies after the last order
+    private static final int DRAIN_TIMEOUT_MS = 2000;
+    // the last part of the wait for the next order is done by busy waiting
+    private static final long SPIN_NS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /** result of running at one rate. */
+    public static final class Step
+    {
+        final double targetRate;
+        final LatencyHistogram latency = new LatencyHistogram();
+        long submitted = 0;
+        long replies = 0;
+        long errorReplies = 0;
+        long failed = 0;
+        long durationNs = 0;
+        boolean sustainable = false;
+
+        Step(double targetRate)
+        {
+            this.targetRate = targetRate;
+        }
+
+        public double getTargetRate()
+        {
+            return targetRate;
+        }
+
+        /**
+         * @return replies per second.
+         */
+        public double getAchievedRate()
+        {
+            if(0 == durationNs)
+            {
+                return 0.0;
+            }
+            return replies * 1000000000.0 / durationNs;
+        }
+
+        public LatencyHistogram getLatency()
+        {
+            return latency;
+        }
+
+        public boolean isSustainable()
+        {
+            return sustainable;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%9.1f orders/s -> %9.1f replies/s, %6d orders, %4d error replies, %4d failed, %s%s",
+                                 targetRate, getAchievedRate(), submitted, errorReplies, failed,
+                                 latency.toString(), (true == sustainable) ? "" : "  <- too much");
+        }
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private final TransportLayerTest tlt;
+    private final int windowSize;
+    private final Vector<Byte> mixOrders = new Vector<Byte>();
+    private final Vector<byte[]> mixParameters = new Vector<byte[]>();
+    private final Vector<Step> steps = new Vector<Step>();
+    private int latencyLimitMs = DEFAULT_LATENCY_LIMIT_MS;
+
+    public LoadTest(TransportLayerTest tlt, int windowSize)
+    {
+        this.tlt = tlt;
+        this.windowSize = windowSize;
+        setMix(DEFAULT_MIX);
+    }
+
+    /** defines the orders that get send one after the other.
+     *
+     * Comma separated list of temp, input, status, info. An optional
+     * "=number" selects the device (default: 1), for example "temp=2,input".
+     * temp = request temperature, input = request input,
+     * status = request device status of a heater, info = request firmware name.
+     *
+     * @param mix the list
+     * @return true = valid; false = invalid definition, mix has not been changed.
+     */
+    public boolean setMix(String mix)
+    {
+        final Vector<Byte> orders = new Vector<Byte>();
+        final Vector<byte[]> parameters = new Vector<byte[]>();
+        if(false == parseMix(mix, orders, parameters))
+        {
+            return false;
+        }
+        mixOrders.clear();
+        mixOrders.addAll(orders);
+        mixParameters.clear();
+        mixParameters.addAll(parameters);
+        return true;
+    }
+
+    /**
+     * @param mix the list as described in setMix()
+     * @return true = valid; false = invalid definition
+     */
+    public static boolean isValidMix(String mix)
+    {
+        return parseMix(mix, new Vector<Byte>(), new Vector<byte[]>());
+    }
+
+    private static boolean parseMix(String mix, Vector<Byte> orders, Vector<byte[]> parameters)
+    {
+        for(String part : mix.split(","))
+        {
+            final String[] kv = part.trim().split("=");
+            int device = 1;
+            if(2 == kv.length)
+            {
+                try
+                {
+                    device = Integer.parseInt(kv[1].trim());
+                }
+                catch(NumberFormatException e)
+                {
+                    return false;
+                }
+            }
+            else if(1 != kv.length)
+            {
+                return false;
+            }
+            if((0 > device) || (255 < device))
+            {
+                return false;
+            }
+            final String name = kv[0].trim();
+            if(true == "temp".equals(name))
+            {
+                orders.add(Protocol.ORDER_REQ_TEMPERATURE);
+                parameters.add(new byte[] {(byte)device});
+            }
+            else if(true == "input".equals(name))
+            {
+                orders.add(Protocol.ORDER_REQ_INPUT);
+                parameters.add(new byte[] {(byte)device});
+            }
+            else if(true == "status".equals(name))
+            {
+                orders.add(Protocol.ORDER_REQUEST_DEVICE_STATUS);
+                parameters.add(new byte[] {Protocol.DEVICE_TYPE_HEATER, (byte)device});
+            }
+            else if(true == "info".equals(name))
+            {
+                orders.add(Protocol.ORDER_REQ_INFORMATION);
+                parameters.add(new byte[] {Protocol.INFO_FIRMWARE_NAME_STRING});
+            }
+            else
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void setLatencyLimit(int ms)
+    {
+        latencyLimitMs = ms;
+    }
+
+    /** sends the orders with a fixed rate.
+     *
+     * @param rate orders per second
+     * @param durationMs send this long
+     * @return the result, or null if the client could not be prepared.
+     */
+    public Step runFixedRate(double rate, int durationMs)
+    {
+        if(false == tlt.clearStoppedState())
+        {
+            return null;
+        }
+        return runStep(rate, durationMs);
+    }
+
+    /** searches the highest rate that the client can sustain.
+     *
+     * @param stepDurationMs each rate gets tested this long
+     * @return the highest sustainable rate in orders per second. 0 if not even START_RATE worked, -1 if the client could not be prepared.
+     */
+    public double findMaxRate(int stepDurationMs)
+    {
+        if(false == tlt.clearStoppedState())
+        {
+            return -1.0;
+        }
+        double good = 0.0;
+        double bad = 0.0;
+        double rate = START_RATE;
+        while(MAX_RATE >= rate)
+        {
+            if(true == runStep(rate, stepDurationMs).isSustainable())
+            {
+                good = rate;
+                rate = rate * 2;
+            }
+            else
+            {
+                bad = rate;
+                break;
+            }
+        }
+        if(0.0 == bad)
+        {
+            // the client is faster than we can measure
+            return good;
+        }
+        while(bad - good > SEARCH_RESOLUTION * bad)
+        {
+            rate = (good + bad) / 2;
+            if(true == runStep(rate, stepDurationMs).isSustainable())
+            {
+                good = rate;
+            }
+            else
+            {
+                bad = rate;
+            }
+        }
+        return good;
+    }
+
+    private Step runStep(double rate, int durationMs)
+    {
+        final Step step = new Step(rate);
+        step.durationNs = TimeUnit.MILLISECONDS.toNanos(durationMs);
+        steps.add(step);
+        final AtomicLong outstanding = new AtomicLong();
+        final long periodNs = (long)(1000000000.0 / rate);
+        final AsyncSession session = new AsyncSession(tlt, windowSize);
+        session.start();
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        long intendedTime = start;
+        int next = 0;
+        while(0 < end - intendedTime)
+        {
+            waitUntil(intendedTime);
+            final long plannedAt = intendedTime;
+            outstanding.incrementAndGet();
+            step.submitted++;
+            session.submit(AsyncSession.LANE_NORMAL, mixOrders.get(next), mixParameters.get(next),
+                           AsyncSession.DEFAULT_TIMEOUT_MS)
+                   .whenComplete(new BiConsumer<Reply, Throwable>()
+            {
+                @Override
+                public void accept(Reply reply, Throwable failure)
+                {
+                    final long now = System.nanoTime();
+                    synchronized(step)
+                    {
+                        if(null == reply)
+                        {
+                            step.failed++;
+                        }
+                        else
+                        {
+                            step.replies++;
+                            if(Protocol.RESPONSE_OK != reply.getReplyCode())
+                            {
+                                step.errorReplies++;
+                            }
+                            // from the planned time, not from the time the order has been send
+                            step.latency.record(now - plannedAt);
+                        }
+                        step.durationNs = Math.max(step.durationNs, now - start);
+                    }
+                    outstanding.decrementAndGet();
+                }
+            });
+            next = (next + 1) % mixOrders.size();
+            // if we are late the next orders are send immediately
+            intendedTime = intendedTime + periodNs;
+        }
+        final long drainEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+        while((0 < outstanding.get()) && (0 < drainEnd - System.nanoTime()))
+        {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        final boolean drained = (0 == outstanding.get());
+        // fails the orders that are still waiting
+        session.close();
+        if(false == drained)
+        {
+            // the replies to those orders must not be taken for the orders of the next rate
+            tlt.drainStaleReplies();
+        }
+        synchronized(step)
+        {
+            step.sustainable = (0 == step.failed)
+                            && (TimeUnit.MILLISECONDS.toNanos(latencyLimitMs) >= step.latency.getValueAtPercentile(99.0));
+        }
+        log.debug("{}", step);
+        return step;
+    }
+
+    private static void waitUntil(long time)
+    {
+        long remaining = time - System.nanoTime();
+        while(0 < remaining)
+        {
+            if(SPIN_NS < remaining)
+            {
+                LockSupport.parkNanos(remaining - SPIN_NS);
+            }
+            else
+            {
+                Thread.yield();
+            }
+            remaining = time - System.nanoTime();
+        }
+    }
+
+    /**
+     * @return all rates that have been tested, in the order of the tests.
+     */
+    public Vector<Step> getSteps()
+    {
+        return steps;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("order mix: %d orders, window %d, p99 limit %d ms, latency from the planned send time\n",
+                                mixOrders.size(), windowSize, latencyLimitMs));
+        for(Step s : steps)
+        {
+            synchronized(s)
+            {
+                sb.append(s.toString());
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** in memory connection to a simulated client.
+ *
+ * The descriptor is: sim://
+ * or sim://maxframe=<bytes> for a client that only accepts order frames
+ * up to that length.
+ * The client handles each order while it is send, so the reply is
+ * already in the receive buffer when sendRequest() returns.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class MemoryConnection extends AbstractTransport
+{
+    public static final String DESCRIPTOR_PREFIX = "sim://";
+    public static final String OPTION_MAX_FRAME_LENGTH = "maxframe=";
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private SimulatedClient dut;
+
+    public MemoryConnection()
+    {
+    }
+
+    public static boolean isMemoryDescriptor(String descriptor)
+    {
+        return descriptor.startsWith(DESCRIPTOR_PREFIX);
+    }
+
+    @Override
+    public boolean establishConnectionTo(String descriptor)
+    {
+        clearReceiveBuffer();
+        dut = new SimulatedClient(new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                final byte[] data = {(byte)b};
+                write(data, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                if(len != receiveBuffer.write(b, off, len, RECEIVE_POLL_TIMEOUT_MS))
+                {
+                    throw new IOException("Receive Buffer is full !");
+                }
+            }
+        });
+        final String options = descriptor.substring(DESCRIPTOR_PREFIX.length());
+        if(true == options.startsWith(OPTION_MAX_FRAME_LENGTH))
+        {
+            try
+            {
+                dut.setMaxFrameLength(Integer.parseInt(options.substring(OPTION_MAX_FRAME_LENGTH.length())));
+            }
+            catch(NumberFormatException e)
+            {
+                log.error("Invalid maximum frame length in {} !", descriptor);
+                dut = null;
+                return false;
+            }
+        }
+        log.info("Connected to simulated client");
+        return true;
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return (null != dut);
+    }
+
+    @Override
+    public boolean close()
+    {
+        if(null == dut)
+        {
+            return false;
+        }
+        stopCoalescing();
+        dut = null;
+        return true;
+    }
+
+    @Override
+    protected boolean writeData(byte[] data, int offset, int length)
+    {
+        if(null == dut)
+        {
+            log.error("Failed to send Request - not connected !");
+            return false;
+        }
+        dut.receive(data, offset, length);
+        return true;
+    }
+
+    @Override
+    protected void receiveData() throws IOException
+    {
+        // not used: the simulated client writes directly into the receive buffer.
+    }
+
+}
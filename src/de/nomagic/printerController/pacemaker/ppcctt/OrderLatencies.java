@@ -0,0 +1,72 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+/** how long the client needed to answer, for each order code.
+ *
+ * The time is measured from the first transmission of the order until the
+ * valid reply was received, so retransmissions make it longer.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class OrderLatencies
+{
+    private static final int NUM_ORDER_CODES = 256;
+
+    // null = order code has not been used
+    private final LatencyHistogram[] histograms = new LatencyHistogram[NUM_ORDER_CODES];
+
+    public OrderLatencies()
+    {
+    }
+
+    public synchronized void record(byte order, long latencyNs)
+    {
+        final int idx = 0xff & order;
+        if(null == histograms[idx])
+        {
+            histograms[idx] = new LatencyHistogram();
+        }
+        histograms[idx].record(latencyNs);
+    }
+
+    /**
+     * @param order the order code
+     * @return the histogram, or null if no reply to this order code has been received.
+     */
+    public synchronized LatencyHistogram getHistogram(byte order)
+    {
+        return histograms[0xff & order];
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < NUM_ORDER_CODES; i++)
+        {
+            if(null != histograms[i])
+            {
+                sb.append(String.format("Order 0x%02x %-28s : %7d replies, %s\n",
+                                        i, Protocol.orderCodeToString((byte)i),
+                                        histograms[i].getNumberOfValues(),
+                                        histograms[i].toString()));
+            }
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,292 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** sends several orders without waiting for the replies in between.
+ *
+ * Up to windowSize orders are in flight. The replies are matched to the
+ * orders by the sequence number in the control byte. As the sequence
+ * number only has 16 values the window can not be bigger than
+ * Protocol.MAX_SEQUENCE_NUMBER. The client handles the orders in the order
+ * they have been received, so the replies must come in the same order.
+ * A window size of 1 is the normal stop and wait behaviour.
+ *
+ * If retransmissions are enabled in the TransportLayerTest a missing reply or
+ * a frame receipt error sends all orders in flight again, starting with the
+ * oldest (go back N). The client only recognises a repeat of its last order,
+ * so the other orders get executed again. Only use orders that can be
+ * executed twice (requests, writing the same value) with retransmissions.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class OrderPipeline
+{
+    public static final int MAX_WINDOW_SIZE = Protocol.MAX_SEQUENCE_NUMBER;
+    private static final int SEQUENCE_MASK = Protocol.MAX_SEQUENCE_NUMBER;
+
+    /** gets called with the reply to an order. */
+    public interface ReplyHandler
+    {
+        /**
+         * @param reply only valid during this call.
+         * @return true = reply was OK; false = reply was wrong -> stop the pipeline.
+         */
+        boolean handleReply(ReplyView reply);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private final TransportLayerTest tlt;
+    private final int windowSize;
+    private final ReplyHandler[] handlers = new ReplyHandler[Protocol.MAX_SEQUENCE_NUMBER + 1];
+    private final byte[] orderCodes = new byte[Protocol.MAX_SEQUENCE_NUMBER + 1];
+    private final long[] sendTimes = new long[Protocol.MAX_SEQUENCE_NUMBER + 1];
+    private int oldestSequenceNumber = 0;
+    private int inFlight = 0;
+    private boolean failed = false;
+    // retransmission
+    private final byte[][] frames = new byte[Protocol.MAX_SEQUENCE_NUMBER + 1][FrameBuilder.MAX_FRAME_LENGTH];
+    private final int[] frameLengths = new int[Protocol.MAX_SEQUENCE_NUMBER + 1];
+    private final boolean[] wasResent = new boolean[Protocol.MAX_SEQUENCE_NUMBER + 1];
+    private int attempt = 0;
+    // replies to orders before this sequence number may come twice
+    private int endOfResend = 0;
+    private boolean resending = false;
+    // statistics
+    private long numOrders = 0;
+    private long numOutOfWindowReplies = 0;
+    private long startTime = 0;
+    private long endTime = 0;
+
+    /**
+     * @param tlt the orders are send through this
+     * @param windowSize maximum number of orders that may wait for their reply.
+     */
+    public OrderPipeline(TransportLayerTest tlt, int windowSize)
+    {
+        this.tlt = tlt;
+        if(1 > windowSize)
+        {
+            windowSize = 1;
+        }
+        if(MAX_WINDOW_SIZE < windowSize)
+        {
+            log.warn("Window size of {} is too big, using {} !", windowSize, MAX_WINDOW_SIZE);
+            windowSize = MAX_WINDOW_SIZE;
+        }
+        this.windowSize = windowSize;
+    }
+
+    public int getWindowSize()
+    {
+        return windowSize;
+    }
+
+    /** starts a new order. Add the parameters and then call sendOrder().
+     *
+     * @param order the order code
+     * @return the builder for the parameters.
+     */
+    public FrameBuilder startOrder(byte order)
+    {
+        return tlt.startOrder(order);
+    }
+
+    /** sends the order that has been prepared with startOrder().
+     *
+     * Blocks if the window is full, until the reply to the oldest order arrived.
+     *
+     * @param handler gets the reply to this order. May be null.
+     * @return true = success; false = failed to send or a reply was wrong.
+     */
+    public boolean sendOrder(ReplyHandler handler)
+    {
+        if(true == failed)
+        {
+            return false;
+        }
+        while(windowSize <= inFlight)
+        {
+            if(false == receiveReply())
+            {
+                return false;
+            }
+        }
+        final int sequenceNumber = tlt.getSequenceCounterValue();
+        if(0 == inFlight)
+        {
+            oldestSequenceNumber = sequenceNumber;
+        }
+        if(0 == numOrders)
+        {
+            startTime = System.nanoTime();
+        }
+        handlers[sequenceNumber] = handler;
+        if(false == tlt.sendOrder())
+        {
+            log.error("Failed to send order !");
+            failed = true;
+            return false;
+        }
+        sendTimes[sequenceNumber] = System.nanoTime();
+        orderCodes[sequenceNumber] = tlt.getLastOrder();
+        if(0 < tlt.getMaxRetransmissions())
+        {
+            frameLengths[sequenceNumber] = tlt.copyLastFrame(frames[sequenceNumber]);
+            wasResent[sequenceNumber] = false;
+        }
+        inFlight++;
+        numOrders++;
+        tlt.IncrementSequenceCounter();
+        return true;
+    }
+
+    /** waits until all orders have been answered.
+     *
+     * @return true = all replies have been received and handled successfully.
+     */
+    public boolean waitForAllReplies()
+    {
+        while((0 < inFlight) && (false == failed))
+        {
+            if(false == receiveReply())
+            {
+                return false;
+            }
+        }
+        return (false == failed);
+    }
+
+    private boolean receiveReply()
+    {
+        final ReplyView reply = tlt.getAnyFrame();
+        if(null == reply)
+        {
+            tlt.getLinkStatistics().countReplyTimeout();
+            log.error("Did not get a Reply ! ({} orders are waiting)", inFlight);
+            return goBack();
+        }
+        if(true == TransportLayerTest.isReceiptError(reply))
+        {
+            // the replies come in order -> the oldest order got damaged
+            // (The sequence number of the reply can not be trusted, the client might not have been able to read it.)
+            tlt.getLinkStatistics().countReceiptError();
+            log.error("Client reported a Frame Receipt Error ! ({} orders are waiting)", inFlight);
+            return goBack();
+        }
+        final int sequenceNumber = reply.getSequenceNumber();
+        // position in the window; works across the wrap around from 15 to 0
+        final int pos = (sequenceNumber - oldestSequenceNumber) & SEQUENCE_MASK;
+        if(inFlight <= pos)
+        {
+            // old or unexpected reply -> not for us
+            numOutOfWindowReplies++;
+            if(true == resending)
+            {
+                tlt.getLinkStatistics().countStaleReply();
+            }
+            log.warn("Received reply with sequence number {} outside of the window !", sequenceNumber);
+            return true;
+        }
+        if(0 != pos)
+        {
+            if(true == resending)
+            {
+                // reply to a transmission from before the resend. The order will be answered again.
+                tlt.getLinkStatistics().countStaleReply();
+                return true;
+            }
+            log.error("The replies to {} orders are missing !", pos);
+            return goBack();
+        }
+        final ReplyHandler handler = handlers[sequenceNumber];
+        handlers[sequenceNumber] = null;
+        oldestSequenceNumber = (oldestSequenceNumber + 1) & SEQUENCE_MASK;
+        inFlight--;
+        attempt = 0;
+        if(oldestSequenceNumber == endOfResend)
+        {
+            resending = false;
+        }
+        endTime = System.nanoTime();
+        tlt.getLatencies().record(orderCodes[sequenceNumber], endTime - sendTimes[sequenceNumber]);
+        if(null != handler)
+        {
+            if(false == handler.handleReply(reply))
+            {
+                failed = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** sends all orders in flight again, starting with the oldest.
+     *
+     * @return true = orders have been send again; false = no more attempts left or sending failed.
+     */
+    private boolean goBack()
+    {
+        if(tlt.getMaxRetransmissions() <= attempt)
+        {
+            tlt.getLinkStatistics().countFailedOrder();
+            failed = true;
+            return false;
+        }
+        attempt++;
+        log.warn("Sending {} orders again ({}/{}) !", inFlight, attempt, tlt.getMaxRetransmissions());
+        tlt.waitBeforeRetransmission(attempt);
+        for(int i = 0; i < inFlight; i++)
+        {
+            final int seq = (oldestSequenceNumber + i) & SEQUENCE_MASK;
+            if(false == tlt.retransmit(frames[seq], frameLengths[seq], (false == wasResent[seq])))
+            {
+                log.error("Failed to send order !");
+                failed = true;
+                return false;
+            }
+            wasResent[seq] = true;
+        }
+        endOfResend = (oldestSequenceNumber + inFlight) & SEQUENCE_MASK;
+        resending = true;
+        return true;
+    }
+
+    public long getNumberOfOrders()
+    {
+        return numOrders;
+    }
+
+    public long getNumberOfOutOfWindowReplies()
+    {
+        return numOutOfWindowReplies;
+    }
+
+    /**
+     * @return orders per second from the first order to the last reply.
+     */
+    public double getOrdersPerSecond()
+    {
+        if((0 == numOrders) || (endTime <= startTime))
+        {
+            return 0.0;
+        }
+        return (numOrders - inFlight) * 1000000000.0 / (endTime - startTime);
+    }
+
+}
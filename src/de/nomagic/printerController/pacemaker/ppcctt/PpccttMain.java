@@ -38,9 +38,28 @@ public class PpccttMain
 {
     private final Logger log = (Logger) LoggerFactory.getLogger(this.getClass().getName());
     private String dutConnect;
-    private UartConnection client;
+    private Transport client;
     private int bootLoaderDelayMs = 0;
     private String FirmwareConfigurationFileName = null;
+    private boolean usePty = false;
+    private boolean useLinuxSerial = false;
+    private int windowSize = 1;
+    private boolean probeFrameLength = false;
+    private int writeCoalescingMs = 0;
+    private String replyTimeouts = null;
+    private String rtoLimits = null;
+    private int maxRetransmissions = 0;
+    private LineNoise noiseToClient = null;
+    private LineNoise noiseFromClient = null;
+    private int goodputSeconds = 0;
+    private int saturationSeconds = 0;
+    private int[] sweepBaudrates = null;
+    // 0 = no load test; < 0 = search the maximum rate
+    private double loadRate = 0.0;
+    private int loadSeconds = 0;
+    private String loadMix = LoadTest.DEFAULT_MIX;
+    private int loadLatencyLimitMs = LoadTest.DEFAULT_LATENCY_LIMIT_MS;
+    private PtyHarness pty = null;
 
     public PpccttMain()
     {
@@ -133,11 +152,58 @@ public class PpccttMain
         System.out.println("Pacemaker Protocol Client Complience Test Tool - PPCCTT");
         System.out.println("Usage: java -jar ClientComplienceTest.jar "
                 + "COM3:115200:8:None:1:false:false:false:false");
+        System.out.println("           (port:baudrate:data bits:parity:stop bits:RTS/CTS in:RTS/CTS out:XON/XOFF in:XON/XOFF out,\n"
+                + "            XON/XOFF is not supported: the binary frames contain 0x11 and 0x13)");
+        System.out.println("   or: java -jar ClientComplienceTest.jar "
+                + "tcp://host:port");
+        System.out.println("   or: java -jar ClientComplienceTest.jar "
+                + "sim://   (simulated client, no hardware needed)");
+        System.out.println("   or: java -jar ClientComplienceTest.jar "
+                + "sim://maxframe=64   (simulated client that only accepts frames up to 64 bytes)");
+        System.out.println("   or: java -jar ClientComplienceTest.jar "
+                + "-pty     (simulated client on a Linux pseudo terminal)");
         System.out.println("Parameters:");
         System.out.println("-h                         : print this message.");
         System.out.println("-b <ms>                    : After connect wait for the defined time.\n"
                          + "                             For Arduino Auto reset use -b 1000.");
         System.out.println("-c <fileName.cfg>          : applies the Firmware configuration in the File before testing.");
+        System.out.println("-w <num>                   : send up to num orders (max. " + OrderPipeline.MAX_WINDOW_SIZE
+                         + ") before waiting for the replies\n"
+                         + "                             in the device discovery and the firmware configuration.");
+        System.out.println("-f                         : also search the longest frame that the client accepts and measure\n"
+                         + "                             the payload bytes/s for several frame lengths.");
+        System.out.println("-C <ms>                    : collect orders and send them together. An order waits at most\n"
+                         + "                             ms milliseconds. Use with -w.");
+        System.out.println("-t <first>:<inter>:<frame> : reply timeouts in ms: first byte, between bytes, whole frame.\n"
+                         + "                             default: " + ReplyTimeouts.DEFAULT_FIRST_BYTE_MS + ":"
+                         + ReplyTimeouts.DEFAULT_INTER_BYTE_MS + ":" + ReplyTimeouts.DEFAULT_WHOLE_FRAME_MS);
+        System.out.println("-rto <floor>:<ceiling>     : limits in ms for the reply timeouts learned from the round trip times.\n"
+                         + "                             default: " + RttEstimator.DEFAULT_FLOOR_MS + ":"
+                         + RttEstimator.DEFAULT_CEILING_MS + "  -rto off : always use the fixed timeouts (-t).");
+        System.out.println("-r <num>                   : send an order up to num times again if the reply is missing\n"
+                         + "                             or the client reported a frame receipt error. default: 0");
+        System.out.println("-noise-tx <definition>     : damage the orders like a bad cable would. Definition:\n"
+                         + "                             ber=<p>,drop=<p>,dup=<p>,delay=<p>:<ms>,seed=<n>  (p = probability\n"
+                         + "                             of a flipped bit, lost byte, duplicated byte, delayed block)");
+        System.out.println("-noise-rx <definition>     : damage the replies like a bad cable would.");
+        System.out.println("-g <seconds>               : instead of the tests measure the valid replies per second (goodput).\n"
+                         + "                             Use with -w, -r and -noise-tx / -noise-rx.");
+        System.out.println("-s <seconds>               : instead of the tests send the cheapest order as fast as possible and\n"
+                         + "                             measure frames/s and bytes/s in both directions. Use with -w.");
+        System.out.println("-sweep <baud>,<baud>,..    : open the serial port with each baud rate and run the test of -s for\n"
+                         + "                             each of them (default 1 second). -sweep default : 9600 .. 1000000");
+        System.out.println("-l <rate>:<seconds>        : instead of the tests send status requests with rate orders per second.\n"
+                         + "                             The latency is measured from the planned send time.\n"
+                         + "                             -l max:<seconds> : search the highest rate the client can sustain,\n"
+                         + "                             each tested rate runs for the given time. Use with -w.");
+        System.out.println("-lm <mix>                  : orders for -l, comma separated: temp, input, status, info\n"
+                         + "                             with optional =<device number>. default: " + LoadTest.DEFAULT_MIX);
+        System.out.println("-ll <ms>                   : a rate is sustainable if 99% of the latencies are below ms.\n"
+                         + "                             default: " + LoadTest.DEFAULT_LATENCY_LIMIT_MS);
+        System.out.println("-L                         : use the Linux serial driver directly (low latency)\n"
+                         + "                             instead of purejavacomm.");
+        System.out.println("-pty                       : test the serial port code against a simulated client\n"
+                         + "                             connected through a pseudo terminal (Linux only).");
         System.out.println("-v                         : verbose output for even more messages use -v -v");
     }
 
@@ -161,6 +227,133 @@ public class PpccttMain
                     i++;
                     FirmwareConfigurationFileName = args[i];
                 }
+                else if(true == "-w".equals(args[i]))
+                {
+                    i++;
+                    windowSize = Integer.parseInt(args[i]);
+                }
+                else if(true == "-f".equals(args[i]))
+                {
+                    probeFrameLength = true;
+                }
+                else if(true == "-C".equals(args[i]))
+                {
+                    i++;
+                    writeCoalescingMs = Integer.parseInt(args[i]);
+                }
+                else if(true == "-t".equals(args[i]))
+                {
+                    i++;
+                    replyTimeouts = args[i];
+                    if(false == new ReplyTimeouts().parseDefault(replyTimeouts))
+                    {
+                        System.err.println("Invalid timeouts : " + replyTimeouts);
+                        return false;
+                    }
+                }
+                else if(true == "-rto".equals(args[i]))
+                {
+                    i++;
+                    rtoLimits = args[i];
+                    if(   (false == "off".equals(rtoLimits))
+                       && (false == rtoLimits.matches("\\d+:\\d+")) )
+                    {
+                        System.err.println("Invalid timeout limits : " + rtoLimits);
+                        return false;
+                    }
+                }
+                else if(true == "-r".equals(args[i]))
+                {
+                    i++;
+                    maxRetransmissions = Integer.parseInt(args[i]);
+                }
+                else if(true == "-noise-tx".equals(args[i]))
+                {
+                    i++;
+                    noiseToClient = LineNoise.parse(args[i]);
+                    if(null == noiseToClient)
+                    {
+                        System.err.println("Invalid noise definition : " + args[i]);
+                        return false;
+                    }
+                }
+                else if(true == "-noise-rx".equals(args[i]))
+                {
+                    i++;
+                    noiseFromClient = LineNoise.parse(args[i]);
+                    if(null == noiseFromClient)
+                    {
+                        System.err.println("Invalid noise definition : " + args[i]);
+                        return false;
+                    }
+                }
+                else if(true == "-g".equals(args[i]))
+                {
+                    i++;
+                    goodputSeconds = Integer.parseInt(args[i]);
+                }
+                else if(true == "-s".equals(args[i]))
+                {
+                    i++;
+                    saturationSeconds = Integer.parseInt(args[i]);
+                }
+                else if(true == "-sweep".equals(args[i]))
+                {
+                    i++;
+                    sweepBaudrates = BaudRateSweep.parseBaudrates(args[i]);
+                    if(null == sweepBaudrates)
+                    {
+                        System.err.println("Invalid baud rates : " + args[i]);
+                        return false;
+                    }
+                }
+                else if(true == "-l".equals(args[i]))
+                {
+                    i++;
+                    final String[] parts = args[i].split(":");
+                    if(2 != parts.length)
+                    {
+                        System.err.println("Invalid load definition : " + args[i]);
+                        return false;
+                    }
+                    if(true == "max".equals(parts[0]))
+                    {
+                        loadRate = -1.0;
+                    }
+                    else
+                    {
+                        loadRate = Double.parseDouble(parts[0]);
+                    }
+                    loadSeconds = Integer.parseInt(parts[1]);
+                    if((0.0 == loadRate) || (1 > loadSeconds))
+                    {
+                        System.err.println("Invalid load definition : " + args[i]);
+                        return false;
+                    }
+                }
+                else if(true == "-lm".equals(args[i]))
+                {
+                    i++;
+                    loadMix = args[i];
+                    if(false == LoadTest.isValidMix(loadMix))
+                    {
+                        System.err.println("Invalid order mix : " + loadMix);
+                        return false;
+                    }
+                }
+                else if(true == "-ll".equals(args[i]))
+                {
+                    i++;
+                    loadLatencyLimitMs = Integer.parseInt(args[i]);
+                }
+                else if(true == "-L".equals(args[i]))
+                {
+                    useLinuxSerial = true;
+                }
+                else if(true == "-pty".equals(args[i]))
+                {
+                    usePty = true;
+                }
                 else if(true == "-v".equals(args[i]))
                 {
                     // already handled -> ignore
@@ -176,6 +369,11 @@ public class PpccttMain
                 dutConnect = args[i];
             }
         }
+        if(true == usePty)
+        {
+            // the pseudo terminal defines the connection
+            return true;
+        }
         if(null == dutConnect)
         {
             return false;
@@ -218,14 +416,27 @@ public class PpccttMain
     }
 
 
+    private boolean startPty()
+    {
+        pty = new PtyHarness();
+        if(false == pty.open())
+        {
+            return false;
+        }
+        dutConnect = pty.getDescriptor();
+        return true;
+    }
+
     private boolean connectToDut()
     {
         log.trace("Connecting to {} !",dutConnect );
-        client = new UartConnection();
+        client = TransportFactory.createFor(dutConnect, useLinuxSerial);
         if(false == client.establishConnectionTo(dutConnect))
         {
             return false;
         }
+        client.setWriteCoalescing(writeCoalescingMs);
+        client.setLineNoise(noiseToClient, noiseFromClient);
         // Arduino Clients with Automatic Reset need a pause of one second.(Bootloader)
         if(0 < bootLoaderDelayMs)
         {
@@ -253,9 +464,97 @@ public class PpccttMain
     }
 
 
+    private TransportLayerTest createTransportLayerTest()
+    {
+        final TransportLayerTest tlt = new TransportLayerTest(client);
+        if(null != replyTimeouts)
+        {
+            tlt.getTimeouts().parseDefault(replyTimeouts);
+        }
+        if(true == "off".equals(rtoLimits))
+        {
+            tlt.setAdaptiveTimeouts(false);
+        }
+        else if(null != rtoLimits)
+        {
+            final String[] limits = rtoLimits.split(":");
+            tlt.getRttEstimator().setLimits(Integer.parseInt(limits[0]), Integer.parseInt(limits[1]));
+        }
+        tlt.setMaxRetransmissions(maxRetransmissions);
+        return tlt;
+    }
+
+    private void doBaudRateSweep()
+    {
+        if(true == usePty)
+        {
+            if(false == startPty())
+            {
+                log.error("Could not create the pseudo terminal !");
+                return;
+            }
+        }
+        if(   (true == TcpConnection.isTcpDescriptor(dutConnect))
+           || (true == MemoryConnection.isMemoryDescriptor(dutConnect)) )
+        {
+            log.error("The baud rate sweep needs a serial port !");
+            return;
+        }
+        final String baseDescriptor = dutConnect;
+        final BaudRateSweep sweep = new BaudRateSweep();
+        final int seconds = (0 < saturationSeconds) ? saturationSeconds : 1;
+        int nextSequenceNumber = 0;
+        for(int baudrate : sweepBaudrates)
+        {
+            System.out.println("Testing " + baudrate + " baud ...");
+            dutConnect = UartConnection.setBaudrateInDescriptor(baseDescriptor, baudrate);
+            if(false == connectToDut())
+            {
+                sweep.addFailure(baudrate, "could not open the port");
+                continue;
+            }
+            final TransportLayerTest tlt = createTransportLayerTest();
+            // the client has not been reset
+            tlt.setSequenceCounterValue(nextSequenceNumber);
+            final SaturationTest saturation = new SaturationTest(tlt, windowSize, dutConnect);
+            if(true == saturation.run(1000 * seconds))
+            {
+                sweep.addResult(baudrate, saturation, tlt);
+            }
+            else
+            {
+                sweep.addFailure(baudrate, "no reply from the client");
+            }
+            nextSequenceNumber = tlt.getSequenceCounterValue();
+            tlt.getDebugChannel().close();
+            if(false == closeConnectionToDut())
+            {
+                log.error("closing the connection failed !");
+            }
+        }
+        dutConnect = baseDescriptor;
+        if(null != pty)
+        {
+            pty.close();
+        }
+        System.out.println("===============================================================================");
+        System.out.println("Baud rate sweep for : " + dutConnect);
+        System.out.print(sweep.toString());
+        System.out.println("===============================================================================");
+        System.out.println("Baud rate sweep finished !");
+    }
+
     private void doAllTests()
     {
         System.out.println("Please make sure that the Client has been reset before starting this test !");
+        if(true == usePty)
+        {
+            if(false == startPty())
+            {
+                log.error("Could not create the pseudo terminal !");
+                return;
+            }
+        }
         ClientInformation dutInfo = new ClientInformation();
         dutInfo.setConnectionDefinition(dutConnect);
         boolean success;
@@ -265,13 +564,62 @@ public class PpccttMain
             log.error("Connecting failed !");
             return;
         }
-        TransportLayerTest tlt = new TransportLayerTest(client);
-        CommandLayerTest clt = new CommandLayerTest(tlt, dutInfo, FirmwareConfigurationFileName);
-        success = clt.doAllTests();
-        if(false == success)
+        TransportLayerTest tlt = createTransportLayerTest();
+        GoodputTest goodput = null;
+        LoadTest load = null;
+        SaturationTest saturation = null;
+        double maxRate = 0.0;
+        if(0 < saturationSeconds)
         {
-            log.error("Command Layer Tests failed !");
-            return;
+            saturation = new SaturationTest(tlt, windowSize, dutConnect);
+            success = saturation.run(1000 * saturationSeconds);
+            if(false == success)
+            {
+                log.error("Saturation measurement failed !");
+                return;
+            }
+        }
+        else if(0.0 != loadRate)
+        {
+            load = new LoadTest(tlt, windowSize);
+            load.setMix(loadMix);
+            load.setLatencyLimit(loadLatencyLimitMs);
+            if(0.0 > loadRate)
+            {
+                maxRate = load.findMaxRate(1000 * loadSeconds);
+                success = (0.0 <= maxRate);
+            }
+            else
+            {
+                success = (null != load.runFixedRate(loadRate, 1000 * loadSeconds));
+            }
+            if(false == success)
+            {
+                log.error("Load test failed !");
+                return;
+            }
+        }
+        else if(0 < goodputSeconds)
+        {
+            goodput = new GoodputTest(tlt, windowSize);
+            success = goodput.run(1000 * goodputSeconds);
+            if(false == success)
+            {
+                log.error("Goodput measurement failed !");
+                return;
+            }
+        }
+        else
+        {
+            CommandLayerTest clt = new CommandLayerTest(tlt, dutInfo, FirmwareConfigurationFileName);
+            clt.setWindowSize(windowSize);
+            clt.setFrameLengthProbe(probeFrameLength);
+            success = clt.doAllTests();
+            if(false == success)
+            {
+                log.error("Command Layer Tests failed !");
+                return;
+            }
         }
         success = closeConnectionToDut();
         if(false == success)
@@ -279,11 +627,82 @@ public class PpccttMain
             log.error("closing the connection failed !");
             return;
         }
+        if(null != pty)
+        {
+            pty.close();
+        }
         System.out.println("===============================================================================");
-        System.out.println("Test finished for :");
-        System.out.println(dutInfo.toString());
+        if(null != saturation)
+        {
+            System.out.println("Link saturation measured for : " + dutConnect);
+        }
+        else if(null != load)
+        {
+            System.out.println("Load test for : " + dutConnect);
+        }
+        else if(null != goodput)
+        {
+            System.out.println("Goodput measured for : " + dutConnect);
+        }
+        else
+        {
+            System.out.println("Test finished for :");
+            System.out.println(dutInfo.toString());
+        }
+        System.out.println("Round trip times :");
+        System.out.print(tlt.getRttEstimator().toString());
+        System.out.println("Reply latencies :");
+        System.out.print(tlt.getLatencies().toString());
+        System.out.println("Link quality :");
+        System.out.println(tlt.getLinkStatistics().toString());
+        if(0 < tlt.getDebugChannel().getNumberOfFrames())
+        {
+            System.out.println("Debug frames : " + tlt.getDebugChannel().toString());
+        }
+        if(null != noiseToClient)
+        {
+            System.out.println("Noise on orders : " + noiseToClient.toString());
+        }
+        if(null != noiseFromClient)
+        {
+            System.out.println("Noise on replies : " + noiseFromClient.toString());
+        }
+        if(null != goodput)
+        {
+            System.out.println("Goodput :");
+            System.out.println(goodput.toString());
+        }
+        if(null != saturation)
+        {
+            System.out.println("Link saturation :");
+            System.out.print(saturation.toString());
+        }
+        if(null != load)
+        {
+            System.out.println("Load :");
+            System.out.print(load.toString());
+            if(0.0 > loadRate)
+            {
+                System.out.println(String.format("Highest sustainable rate : %.1f orders/s", maxRate));
+            }
+        }
         System.out.println("===============================================================================");
-        System.out.println("All tests Successfull !");
+        if(null != saturation)
+        {
+            System.out.println("Link saturation measurement finished !");
+        }
+        else if(null != load)
+        {
+            System.out.println("Load test finished !");
+        }
+        else if(null != goodput)
+        {
+            System.out.println("Goodput measurement finished !");
+        }
+        else
+        {
+            System.out.println("All tests Successfull !");
+        }
     }
 
     /**
@@ -298,7 +717,14 @@ public class PpccttMain
             ct.printHelp();
             return;
         }
-        ct.doAllTests();
+        if(null != ct.sweepBaudrates)
+        {
+            ct.doBaudRateSweep();
+        }
+        else
+        {
+            ct.doAllTests();
+        }
         System.exit(0);
     }
 
@@ -0,0 +1,243 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import purejavacomm.CommDriver;
+import purejavacomm.CommPort;
+import purejavacomm.CommPortIdentifier;
+import purejavacomm.PureJavaSerialPort;
+
+import com.sun.jna.NativeLong;
+
+/** connects the simulated client to a Linux pseudo terminal.
+ *
+ * The slave side of the pseudo terminal looks like a serial port, so that
+ * the real UartConnection (purejavacomm, descriptor parsing, timing) can be
+ * tested without hardware. The simulated client sits on the master side.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class PtyHarness
+{
+    public static final String DEFAULT_SETTINGS = ":115200:8:None:1:false:false:false:false";
+    public static final int POLL_TIMEOUT_MS = 100;
+    public static final String DESCRIPTOR_PREFIX = "/dev/pts/";
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private LinuxLibC libc;
+    private int masterFd = -1;
+    private int slaveFd = -1;
+    private String slaveName;
+    private Thread clientThread;
+    private volatile boolean isRunning = false;
+
+    public PtyHarness()
+    {
+    }
+
+    /**
+     * @param descriptor connection descriptor
+     * @return true = the port is a pseudo terminal. The baud rate has no effect on it.
+     */
+    public static boolean isPtyDescriptor(String descriptor)
+    {
+        return descriptor.startsWith(DESCRIPTOR_PREFIX);
+    }
+
+    /** creates the pseudo terminal and starts the simulated client on it.
+     *
+     * @return true = success; false = failed to create the pseudo terminal
+     */
+    public boolean open()
+    {
+        try
+        {
+            libc = LinuxLibC.INSTANCE;
+        }
+        catch(UnsatisfiedLinkError e)
+        {
+            log.error("Pseudo terminals are not available on this system !");
+            return false;
+        }
+        masterFd = libc.posix_openpt(LinuxLibC.O_RDWR | LinuxLibC.O_NOCTTY);
+        if(0 > masterFd)
+        {
+            log.error("Could not open a pseudo terminal !");
+            return false;
+        }
+        if((0 != libc.grantpt(masterFd)) || (0 != libc.unlockpt(masterFd)))
+        {
+            log.error("Could not unlock the pseudo terminal !");
+            close();
+            return false;
+        }
+        slaveName = libc.ptsname(masterFd);
+        // keep the slave open, so that the master does not see a hang up
+        // between the tests, and switch it to raw mode.
+        slaveFd = libc.open(slaveName, LinuxLibC.O_RDWR | LinuxLibC.O_NOCTTY);
+        if(0 > slaveFd)
+        {
+            log.error("Could not open {} !", slaveName);
+            close();
+            return false;
+        }
+        final LinuxLibC.Termios tio = new LinuxLibC.Termios();
+        libc.tcgetattr(slaveFd, tio);
+        libc.cfmakeraw(tio);
+        libc.tcsetattr(slaveFd, LinuxLibC.TCSANOW, tio);
+        // purejavacomm only knows the ports it finds directly in /dev
+        CommPortIdentifier.addPortName(slaveName, CommPortIdentifier.PORT_SERIAL, new PtyDriver());
+
+        final SimulatedClient dut = new SimulatedClient(new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                final byte[] data = {(byte)b};
+                write(data, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                if(0 != off)
+                {
+                    b = Arrays.copyOfRange(b, off, off + len);
+                }
+                if(len != libc.write(masterFd, b, new NativeLong(len)).intValue())
+                {
+                    throw new IOException("Could not write to pseudo terminal !");
+                }
+            }
+        });
+        isRunning = true;
+        clientThread = new Thread("Simulated client on " + slaveName)
+        {
+            @Override
+            public void run()
+            {
+                runClient(dut);
+            }
+        };
+        clientThread.setDaemon(true);
+        clientThread.start();
+        log.info("Simulated client is on {}", slaveName);
+        return true;
+    }
+
+    /**
+     * @return the name of the serial port for the host.
+     */
+    public String getPortName()
+    {
+        return slaveName;
+    }
+
+    /**
+     * @return connection descriptor for UartConnection.
+     */
+    public String getDescriptor()
+    {
+        return slaveName + DEFAULT_SETTINGS;
+    }
+
+    public void close()
+    {
+        isRunning = false;
+        if(null != clientThread)
+        {
+            try
+            {
+                clientThread.join(2 * POLL_TIMEOUT_MS);
+            }
+            catch(InterruptedException e)
+            {
+                // I don't care
+            }
+            clientThread = null;
+        }
+        if(0 <= slaveFd)
+        {
+            libc.close(slaveFd);
+            slaveFd = -1;
+        }
+        if(0 <= masterFd)
+        {
+            libc.close(masterFd);
+            masterFd = -1;
+        }
+    }
+
+    /** opens added ports with the same serial port implementation that purejavacomm
+     * uses for the ports it found itself. purejavacomm does not make that constructor public.
+     */
+    private class PtyDriver implements CommDriver
+    {
+        @Override
+        public CommPort getCommPort(String portName, int portType)
+        {
+            try
+            {
+                final Constructor<PureJavaSerialPort> con = PureJavaSerialPort.class.getDeclaredConstructor(
+                        String.class, int.class);
+                con.setAccessible(true);
+                return con.newInstance(portName, POLL_TIMEOUT_MS);
+            }
+            catch(Exception e)
+            {
+                log.error("Could not open {} !", portName);
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        @Override
+        public void initialize()
+        {
+        }
+    }
+
+    private void runClient(final SimulatedClient dut)
+    {
+        final byte[] buf = new byte[FrameBuilder.MAX_FRAME_LENGTH];
+        final NativeLong bufSize = new NativeLong(buf.length);
+        final LinuxLibC.Pollfd pfd = new LinuxLibC.Pollfd();
+        pfd.fd = masterFd;
+        pfd.events = LinuxLibC.POLLIN;
+        while(true == isRunning)
+        {
+            pfd.revents = 0;
+            if(1 > libc.poll(pfd, 1, POLL_TIMEOUT_MS))
+            {
+                continue;
+            }
+            final int num = libc.read(masterFd, buf, bufSize).intValue();
+            if(0 < num)
+            {
+                dut.receive(buf, 0, num);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.util.Arrays;
+
+/** a received reply frame that can be passed between threads.
+ *
+ * Unlike ReplyView this holds its own copy of the frame and can not be changed.
+ * Parameter indexes start with 0 at the first byte after the reply code.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public final class Reply
+{
+    private final ReplyView view = new ReplyView();
+
+    /**
+     * @param frame the received frame. Gets copied.
+     */
+    public Reply(ReplyView frame)
+    {
+        final byte[] copy = Arrays.copyOfRange(frame.getBuffer(),
+                                               frame.getOffset(),
+                                               frame.getOffset() + frame.getFrameLength());
+        view.wrap(copy, 0, copy.length);
+    }
+
+    public int getFrameLength()
+    {
+        return view.getFrameLength();
+    }
+
+    public int getSequenceNumber()
+    {
+        return view.getSequenceNumber();
+    }
+
+    public boolean isDebugFrame()
+    {
+        return view.isDebugFrame();
+    }
+
+    public byte getReplyCode()
+    {
+        return view.getReplyCode();
+    }
+
+    public int getParameterLength()
+    {
+        return view.getParameterLength();
+    }
+
+    public int getU8(final int idx)
+    {
+        return view.getU8(idx);
+    }
+
+    public int getU16(final int idx)
+    {
+        return view.getU16(idx);
+    }
+
+    public long getU32(final int idx)
+    {
+        return view.getU32(idx);
+    }
+
+    public int getInteger(final int idx, int numBytes)
+    {
+        return view.getInteger(idx, numBytes);
+    }
+
+    public String getString(final int idx, int numBytes)
+    {
+        return view.getString(idx, numBytes);
+    }
+
+    /**
+     * @return a copy of the frame including Sync and CRC.
+     */
+    public byte[] getFrame()
+    {
+        return Arrays.copyOf(view.getBuffer(), view.getFrameLength());
+    }
+
+    @Override
+    public String toString()
+    {
+        return view.toString();
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+/** how long to wait for the reply to an order.
+ *
+ * The reception of a reply has three phases, each with its own limit:
+ * first byte: from start of waiting until the first byte of the reply arrived,
+ * inter byte: the longest allowed gap between two bytes of the reply,
+ * whole frame: from start of waiting until the last byte of the reply arrived.
+ * There is one set of default values and each order code can have its own values.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class ReplyTimeouts
+{
+    public static final int DEFAULT_FIRST_BYTE_MS = 100;
+    public static final int DEFAULT_INTER_BYTE_MS = 20;
+    public static final int DEFAULT_WHOLE_FRAME_MS = 1000;
+
+    public static final int PHASE_FIRST_BYTE = 0;
+    public static final int PHASE_INTER_BYTE = 1;
+    public static final int PHASE_WHOLE_FRAME = 2;
+    private static final int NUM_PHASES = 3;
+    private static final int NUM_ORDER_CODES = 256;
+
+    private final long[] defaultNs = new long[NUM_PHASES];
+    // null = this order code uses the default values
+    private final long[][] orderNs = new long[NUM_ORDER_CODES][];
+
+    public ReplyTimeouts()
+    {
+        setDefault(DEFAULT_FIRST_BYTE_MS, DEFAULT_INTER_BYTE_MS, DEFAULT_WHOLE_FRAME_MS);
+    }
+
+    public void setDefault(int firstByteMs, int interByteMs, int wholeFrameMs)
+    {
+        defaultNs[PHASE_FIRST_BYTE] = toNs(firstByteMs);
+        defaultNs[PHASE_INTER_BYTE] = toNs(interByteMs);
+        defaultNs[PHASE_WHOLE_FRAME] = toNs(wholeFrameMs);
+    }
+
+    public void setForOrder(byte order, int firstByteMs, int interByteMs, int wholeFrameMs)
+    {
+        final long[] ns = new long[NUM_PHASES];
+        ns[PHASE_FIRST_BYTE] = toNs(firstByteMs);
+        ns[PHASE_INTER_BYTE] = toNs(interByteMs);
+        ns[PHASE_WHOLE_FRAME] = toNs(wholeFrameMs);
+        orderNs[0xff & order] = ns;
+    }
+
+    /** the order code will use the default values again.
+     *
+     * @param order the order code
+     */
+    public void clearForOrder(byte order)
+    {
+        orderNs[0xff & order] = null;
+    }
+
+    /**
+     * @param order order code
+     * @return true if the order code has its own values.
+     */
+    public boolean hasValuesForOrder(byte order)
+    {
+        return (null != orderNs[0xff & order]);
+    }
+
+    /**
+     * @param order order code
+     * @param phase one of the PHASE_* constants
+     * @return the timeout in nanoseconds.
+     */
+    public long getNs(byte order, int phase)
+    {
+        final long[] ns = orderNs[0xff & order];
+        if(null == ns)
+        {
+            return defaultNs[phase];
+        }
+        return ns[phase];
+    }
+
+    public long getDefaultNs(int phase)
+    {
+        return defaultNs[phase];
+    }
+
+    /** parses first:inter:whole (in milliseconds).
+     *
+     * @param definition the values as given on the command line.
+     * @return true = valid definition; false = invalid, nothing changed.
+     */
+    public boolean parseDefault(String definition)
+    {
+        final String[] parts = definition.split(":");
+        if(NUM_PHASES != parts.length)
+        {
+            return false;
+        }
+        try
+        {
+            setDefault(Integer.parseInt(parts[0].trim()),
+                       Integer.parseInt(parts[1].trim()),
+                       Integer.parseInt(parts[2].trim()));
+            return true;
+        }
+        catch(NumberFormatException e)
+        {
+            return false;
+        }
+    }
+
+    private static long toNs(int ms)
+    {
+        return 1000000L * Math.max(0, ms);
+    }
+
+}
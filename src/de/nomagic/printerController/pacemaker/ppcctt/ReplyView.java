@@ -0,0 +1,178 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.nio.charset.Charset;
+
+/** read only view on a reply frame in the receive buffer.
+ *
+ * The same object is reused for every received frame, so the values are only
+ * valid until the next frame is received. Parameter indexes start with 0 at
+ * the first byte after the reply code. All numbers are big endian.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class ReplyView
+{
+    // one character per byte, like the strings have always been read
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private byte[] buf;
+    private int offset;
+    private int length;
+
+    public ReplyView()
+    {
+    }
+
+    /** points this view to a frame.
+     *
+     * @param frame buffer that holds the frame.
+     * @param offset the sync byte of the frame is at this index.
+     * @param length number of bytes in the frame including Sync and CRC.
+     */
+    public void wrap(final byte[] frame, final int offset, final int length)
+    {
+        this.buf = frame;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public byte[] getBuffer()
+    {
+        return buf;
+    }
+
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * @return number of bytes in the frame including Sync and CRC.
+     */
+    public int getFrameLength()
+    {
+        return length;
+    }
+
+    public int getSync()
+    {
+        return 0xff & buf[offset + Protocol.REPLY_POS_OF_SYNC];
+    }
+
+    /**
+     * @return value of the length byte.
+     */
+    public int getLength()
+    {
+        return 0xff & buf[offset + Protocol.REPLY_POS_OF_LENGTH];
+    }
+
+    public int getControl()
+    {
+        return 0xff & buf[offset + Protocol.REPLY_POS_OF_CONTROL];
+    }
+
+    public int getSequenceNumber()
+    {
+        return 0x0f & buf[offset + Protocol.REPLY_POS_OF_CONTROL];
+    }
+
+    public boolean isDebugFrame()
+    {
+        return (Protocol.DEBUG_FLAG == (Protocol.DEBUG_FLAG & buf[offset + Protocol.REPLY_POS_OF_CONTROL]));
+    }
+
+    public byte getReplyCode()
+    {
+        return buf[offset + Protocol.REPLY_POS_OF_REPLY_CODE];
+    }
+
+    public byte getCrc()
+    {
+        return buf[offset + length - 1];
+    }
+
+    /**
+     * @return number of parameter bytes after the reply code.
+     */
+    public int getParameterLength()
+    {
+        return length - 5;
+    }
+
+    public int getU8(final int idx)
+    {
+        return 0xff & buf[offset + Protocol.REPLY_POS_OF_START_OF_PARAMETER + idx];
+    }
+
+    public int getU16(final int idx)
+    {
+        final int pos = offset + Protocol.REPLY_POS_OF_START_OF_PARAMETER + idx;
+        return ((0xff & buf[pos]) << 8) | (0xff & buf[pos + 1]);
+    }
+
+    public long getU32(final int idx)
+    {
+        final int pos = offset + Protocol.REPLY_POS_OF_START_OF_PARAMETER + idx;
+        return ((long)(0xff & buf[pos]) << 24)
+             | ((0xff & buf[pos + 1]) << 16)
+             | ((0xff & buf[pos + 2]) << 8)
+             |  (0xff & buf[pos + 3]);
+    }
+
+    /** reads a big endian number of any length.
+     *
+     * @param idx first byte of the number.
+     * @param numBytes number of bytes in the number.
+     * @return the number
+     */
+    public int getInteger(final int idx, int numBytes)
+    {
+        if(getParameterLength() < idx + numBytes)
+        {
+            numBytes = getParameterLength() - idx;
+        }
+        int res = 0;
+        final int pos = offset + Protocol.REPLY_POS_OF_START_OF_PARAMETER + idx;
+        for(int i = 0; i < numBytes; i++)
+        {
+            res = (res << 8) | (0xff & buf[pos + i]);
+        }
+        return res;
+    }
+
+    public String getString(final int idx, int numBytes)
+    {
+        if(getParameterLength() < idx + numBytes)
+        {
+            numBytes = getParameterLength() - idx;
+        }
+        return new String(buf, offset + Protocol.REPLY_POS_OF_START_OF_PARAMETER + idx, numBytes, LATIN1);
+    }
+
+    @Override
+    public String toString()
+    {
+        if(null == buf)
+        {
+            return "[]";
+        }
+        return Tool.fromByteBufferToHexString(buf, length, offset);
+    }
+
+}
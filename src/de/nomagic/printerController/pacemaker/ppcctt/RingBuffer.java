@@ -0,0 +1,235 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/** fixed size byte FIFO between one producer (the receive thread) and one consumer.
+ *
+ * The producer reads directly from the stream into the buffer, the consumer
+ * copies the bytes out in blocks. Nothing is allocated after construction.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class RingBuffer
+{
+    private final byte[] buf;
+    private final int mask;
+    private int readPos = 0;
+    private int writePos = 0;
+    private int numBytes = 0;
+    // changed by clear(), so that a read that was running meanwhile does not get committed
+    private int clearCount = 0;
+
+    /**
+     * @param size number of bytes the buffer can hold. Must be a power of two.
+     */
+    public RingBuffer(int size)
+    {
+        if((1 > size) || (0 != (size & (size - 1))))
+        {
+            throw new IllegalArgumentException("Size must be a power of two !");
+        }
+        buf = new byte[size];
+        mask = size - 1;
+    }
+
+    public int getSize()
+    {
+        return buf.length;
+    }
+
+    public synchronized int available()
+    {
+        return numBytes;
+    }
+
+    public synchronized void clear()
+    {
+        readPos = 0;
+        writePos = 0;
+        numBytes = 0;
+        clearCount++;
+        notifyAll();
+    }
+
+    /** reads up to maxBytes from the stream directly into the free space of the buffer.
+     *
+     * The read on the stream happens outside of the lock, so that the consumer
+     * can continue taking bytes out while the stream blocks. If the buffer is
+     * full this waits for the consumer for up to timeoutMs. If clear() is
+     * called while the stream blocks, the bytes of that read are dropped.
+     *
+     * @param in the stream to read from.
+     * @param maxBytes read at most this many bytes.
+     * @param timeoutMs wait at most this long for free space.
+     * @return number of bytes read, 0 if the buffer stayed full or has been cleared, -1 if the stream read nothing.
+     * @throws IOException if the stream fails.
+     */
+    public int fillFrom(final InputStream in, final int maxBytes, final int timeoutMs) throws IOException
+    {
+        int pos;
+        int space;
+        int clears;
+        synchronized(this)
+        {
+            if(numBytes == buf.length)
+            {
+                try
+                {
+                    wait(timeoutMs);
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+                if(numBytes == buf.length)
+                {
+                    return 0;
+                }
+            }
+            pos = writePos;
+            clears = clearCount;
+            // only the part up to the end of the array can be filled in one go
+            space = Math.min(buf.length - numBytes, buf.length - pos);
+        }
+        final int res = in.read(buf, pos, Math.min(space, maxBytes));
+        if(0 < res)
+        {
+            synchronized(this)
+            {
+                if(clears != clearCount)
+                {
+                    // received before the clear -> not wanted anymore
+                    return 0;
+                }
+                writePos = (writePos + res) & mask;
+                numBytes = numBytes + res;
+                notifyAll();
+            }
+        }
+        return res;
+    }
+
+    /** copies bytes into the buffer.
+     *
+     * @param src the bytes to add.
+     * @param offset first byte is at this index in src.
+     * @param length number of bytes to add.
+     * @param timeoutMs wait at most this long for free space.
+     * @return number of bytes added. Less than length if the buffer stayed full.
+     */
+    public int write(final byte[] src, final int offset, final int length, final int timeoutMs)
+    {
+        return fillFrom(ByteBuffer.wrap(src, offset, length), timeoutMs);
+    }
+
+    /** copies the remaining bytes of src into the buffer.
+     *
+     * @param src the received bytes. Its position is moved behind the bytes that have been taken.
+     * @param timeoutMs wait at most this long for free space.
+     * @return number of bytes taken from src. Less than remaining if the buffer stayed full.
+     */
+    public synchronized int fillFrom(final ByteBuffer src, final int timeoutMs)
+    {
+        int done = 0;
+        while(0 < src.remaining())
+        {
+            if(numBytes == buf.length)
+            {
+                try
+                {
+                    wait(timeoutMs);
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if(numBytes == buf.length)
+                {
+                    break;
+                }
+            }
+            final int num = Math.min(src.remaining(), Math.min(buf.length - numBytes, buf.length - writePos));
+            src.get(buf, writePos, num);
+            writePos = (writePos + num) & mask;
+            numBytes = numBytes + num;
+            done = done + num;
+            notifyAll();
+        }
+        return done;
+    }
+
+    /** copies the bytes that are in the buffer without taking them out.
+     *
+     * @param dst where to put the bytes.
+     * @param offset first byte goes to this index in dst.
+     * @param length copy at most this many bytes.
+     * @param deadline if the buffer is empty wait until System.nanoTime() reaches this value for a byte to arrive.
+     * @return number of bytes copied. 0 if nothing arrived in time.
+     */
+    public synchronized int peek(final byte[] dst, final int offset, final int length, final long deadline)
+    {
+        if(false == waitForData(deadline))
+        {
+            return 0;
+        }
+        // at most two blocks due to the wrap around
+        final int num = Math.min(numBytes, length);
+        final int first = Math.min(num, buf.length - readPos);
+        System.arraycopy(buf, readPos, dst, offset, first);
+        if(first < num)
+        {
+            System.arraycopy(buf, 0, dst, offset + first, num - first);
+        }
+        return num;
+    }
+
+    /** takes bytes out of the buffer.
+     *
+     * @param num number of bytes to remove. Must not be more than available().
+     */
+    public synchronized void skip(final int num)
+    {
+        readPos = (readPos + num) & mask;
+        numBytes = numBytes - num;
+        notifyAll();
+    }
+
+    private boolean waitForData(final long deadline)
+    {
+        long toWait = deadline - System.nanoTime();
+        while((1 > numBytes) && (0 < toWait))
+        {
+            try
+            {
+                wait(toWait / 1000000, (int)(toWait % 1000000));
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            toWait = deadline - System.nanoTime();
+        }
+        return (0 < numBytes);
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+/** learns how long the client needs to answer each order.
+ *
+ * Keeps a smoothed round trip time (SRTT) and its variation (RTTVAR) for
+ * each order code, calculated like TCP does (RFC 6298). The reply timeout
+ * is SRTT + 4 * RTTVAR, limited to the range floor .. ceiling.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class RttEstimator
+{
+    // learned timeouts never get shorter than the fixed first byte timeout.
+    // Only clients that are slower than that make the timeout grow.
+    public static final int DEFAULT_FLOOR_MS = ReplyTimeouts.DEFAULT_FIRST_BYTE_MS;
+    public static final int DEFAULT_CEILING_MS = 2000;
+    private static final int NUM_ORDER_CODES = 256;
+    // RFC 6298: alpha = 1/8, beta = 1/4, K = 4
+    private static final int ALPHA_SHIFT = 3;
+    private static final int BETA_SHIFT = 2;
+    private static final int K = 4;
+
+    private final long[] srttNs = new long[NUM_ORDER_CODES];
+    private final long[] rttvarNs = new long[NUM_ORDER_CODES];
+    private final long[] numSamples = new long[NUM_ORDER_CODES];
+    private long floorNs;
+    private long ceilingNs;
+
+    public RttEstimator()
+    {
+        setLimits(DEFAULT_FLOOR_MS, DEFAULT_CEILING_MS);
+    }
+
+    public void setLimits(int floorMs, int ceilingMs)
+    {
+        floorNs = 1000000L * floorMs;
+        ceilingNs = 1000000L * Math.max(floorMs, ceilingMs);
+    }
+
+    /** adds a measured round trip time.
+     *
+     * Only use times of orders that have been send once. If an order had to be
+     * send again, it is not known to which transmission the reply belongs.
+     *
+     * @param order the order code
+     * @param rttNs time from sending the order until the reply was complete.
+     */
+    public void addSample(byte order, long rttNs)
+    {
+        final int idx = 0xff & order;
+        if(0 == numSamples[idx])
+        {
+            srttNs[idx] = rttNs;
+            rttvarNs[idx] = rttNs / 2;
+        }
+        else
+        {
+            rttvarNs[idx] = rttvarNs[idx] - (rttvarNs[idx] >> BETA_SHIFT)
+                          + (Math.abs(srttNs[idx] - rttNs) >> BETA_SHIFT);
+            srttNs[idx] = srttNs[idx] - (srttNs[idx] >> ALPHA_SHIFT) + (rttNs >> ALPHA_SHIFT);
+        }
+        numSamples[idx]++;
+    }
+
+    public boolean hasSamples(byte order)
+    {
+        return (0 < numSamples[0xff & order]);
+    }
+
+    /**
+     * @param order the order code
+     * @return the timeout to wait for the reply in nanoseconds. Only valid if hasSamples().
+     */
+    public long getTimeoutNs(byte order)
+    {
+        final int idx = 0xff & order;
+        final long rto = srttNs[idx] + K * rttvarNs[idx];
+        if(rto < floorNs)
+        {
+            return floorNs;
+        }
+        if(rto > ceilingNs)
+        {
+            return ceilingNs;
+        }
+        return rto;
+    }
+
+    public long getSmoothedRttNs(byte order)
+    {
+        return srttNs[0xff & order];
+    }
+
+    public long getRttVariationNs(byte order)
+    {
+        return rttvarNs[0xff & order];
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < NUM_ORDER_CODES; i++)
+        {
+            if(0 < numSamples[i])
+            {
+                sb.append(String.format("Order 0x%02x : %6d replies, SRTT %8.3f ms, RTTVAR %8.3f ms, timeout %8.3f ms\n",
+                                        i, numSamples[i],
+                                        srttNs[i] / 1000000.0,
+                                        rttvarNs[i] / 1000000.0,
+                                        getTimeoutNs((byte)i) / 1000000.0));
+            }
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.util.NoSuchElementException;
+
+/** measures how much of the serial link the client can use.
+ *
+ * Sends the cheapest order (request the firmware type, one byte reply) as
+ * fast as the window allows and counts the frames and bytes in both
+ * directions. The bytes per second are compared to what the baud rate of
+ * the connection descriptor allows (start bit, data bits, parity and stop
+ * bits included).
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class SaturationTest
+{
+    /** the order that gets send, always requesting the firmware type. */
+    public static final byte ORDER = Protocol.ORDER_REQ_INFORMATION;
+
+    private final TransportLayerTest tlt;
+    private final int windowSize;
+    private final String descriptor;
+    private long sentFrames = 0;
+    private long sentBytes = 0;
+    private long sentPayloadBytes = 0;
+    private long receivedFrames = 0;
+    private long receivedBytes = 0;
+    private long receivedPayloadBytes = 0;
+    private long failedPipelines = 0;
+    private long durationNs = 0;
+
+    /**
+     * @param tlt the orders are send through this
+     * @param windowSize number of orders that may wait for their reply.
+     * @param descriptor connection descriptor, used for the baud rate.
+     */
+    public SaturationTest(TransportLayerTest tlt, int windowSize, String descriptor)
+    {
+        this.tlt = tlt;
+        this.windowSize = windowSize;
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * @param durationMs measure this long.
+     * @return true = measurement done; false = the client could not be prepared.
+     */
+    public boolean run(int durationMs)
+    {
+        if(false == tlt.clearStoppedState())
+        {
+            return false;
+        }
+        final LinkStatistics stats = tlt.getLinkStatistics();
+        final long sentFramesBefore = stats.getNumberOfSentFrames();
+        final long sentBytesBefore = stats.getNumberOfSentBytes();
+        final long sentPayloadBefore = stats.getNumberOfSentPayloadBytes();
+        final long receivedFramesBefore = stats.getNumberOfReceivedFrames();
+        final long receivedBytesBefore = stats.getNumberOfReceivedBytes();
+        final long receivedPayloadBefore = stats.getNumberOfReceivedPayloadBytes();
+        final OrderPipeline.ReplyHandler handler = new OrderPipeline.ReplyHandler()
+        {
+            @Override
+            public boolean handleReply(ReplyView reply)
+            {
+                // only the bytes count
+                return true;
+            }
+        };
+        final long start = System.nanoTime();
+        final long end = start + 1000000L * durationMs;
+        OrderPipeline pipe = new OrderPipeline(tlt, windowSize);
+        while(0 < end - System.nanoTime())
+        {
+            pipe.startOrder(ORDER).addU8(Protocol.INFO_FIRMWARE_TYPE);
+            if(false == pipe.sendOrder(handler))
+            {
+                pipe = restart();
+            }
+        }
+        if(false == pipe.waitForAllReplies())
+        {
+            restart();
+        }
+        durationNs = System.nanoTime() - start;
+        sentFrames = stats.getNumberOfSentFrames() - sentFramesBefore;
+        sentBytes = stats.getNumberOfSentBytes() - sentBytesBefore;
+        sentPayloadBytes = stats.getNumberOfSentPayloadBytes() - sentPayloadBefore;
+        receivedFrames = stats.getNumberOfReceivedFrames() - receivedFramesBefore;
+        receivedBytes = stats.getNumberOfReceivedBytes() - receivedBytesBefore;
+        receivedPayloadBytes = stats.getNumberOfReceivedPayloadBytes() - receivedPayloadBefore;
+        return true;
+    }
+
+    private OrderPipeline restart()
+    {
+        failedPipelines++;
+        tlt.drainStaleReplies();
+        return new OrderPipeline(tlt, windowSize);
+    }
+
+    private double perSecond(long value)
+    {
+        if(0 == durationNs)
+        {
+            return 0.0;
+        }
+        return value * 1000000000.0 / durationNs;
+    }
+
+    /**
+     * @return bits per second of the serial port. 0 if the connection has no
+     *         real baud rate (TCP, simulated client, pseudo terminal).
+     */
+    public int getBaudrate()
+    {
+        if(   (true == TcpConnection.isTcpDescriptor(descriptor))
+           || (true == MemoryConnection.isMemoryDescriptor(descriptor))
+           || (true == PtyHarness.isPtyDescriptor(descriptor)) )
+        {
+            return 0;
+        }
+        try
+        {
+            return UartConnection.getBaudrateFromDescriptor(descriptor);
+        }
+        catch(NoSuchElementException e)
+        {
+            return 0;
+        }
+        catch(NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * @param bytesPerSecond bytes in one direction
+     * @return percentage of what the baud rate allows. -1 if the baud rate is not known.
+     */
+    public double getEfficiency(double bytesPerSecond)
+    {
+        final int baud = getBaudrate();
+        if(0 == baud)
+        {
+            return -1.0;
+        }
+        return 100.0 * bytesPerSecond * UartConnection.getBitsPerByteFromDescriptor(descriptor) / baud;
+    }
+
+    /**
+     * @return number of times an order failed even after all retransmissions.
+     */
+    public long getNumberOfFailedPipelines()
+    {
+        return failedPipelines;
+    }
+
+    public double getSentFramesPerSecond()
+    {
+        return perSecond(sentFrames);
+    }
+
+    public double getSentBytesPerSecond()
+    {
+        return perSecond(sentBytes);
+    }
+
+    public double getReceivedFramesPerSecond()
+    {
+        return perSecond(receivedFrames);
+    }
+
+    public double getReceivedBytesPerSecond()
+    {
+        return perSecond(receivedBytes);
+    }
+
+    private String describeDirection(String name, long frames, long bytes, long payloadBytes)
+    {
+        final String res = String.format("%-8s: %9.1f frames/s, %10.1f bytes/s, %10.1f payload bytes/s",
+                                          name, perSecond(frames), perSecond(bytes), perSecond(payloadBytes));
+        final double efficiency = getEfficiency(perSecond(bytes));
+        if(0 > efficiency)
+        {
+            return res;
+        }
+        return res + String.format(", %5.1f%% of %d baud", efficiency, getBaudrate());
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%.3f s, window %d, %d times all retransmissions failed\n",
+                             durationNs / 1000000000.0, windowSize, failedPipelines)
+             + describeDirection("orders", sentFrames, sentBytes, sentPayloadBytes) + "\n"
+             + describeDirection("replies", receivedFrames, receivedBytes, receivedPayloadBytes) + "\n"
+             + ((0 == getBaudrate()) ? "the link has no real baud rate, so there is no line usage to report\n" : "");
+    }
+
+}
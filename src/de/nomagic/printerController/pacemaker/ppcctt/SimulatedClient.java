@@ -0,0 +1,639 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** a Pacemaker client that only exists in software.
+ *
+ * It answers the orders that the compliance test uses, so that the test
+ * can run without hardware. Bytes from the host are passed to
+ * receive(), the reply frames are written to the output stream.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class SimulatedClient
+{
+    public static final String FIRMWARE_NAME = "ppcctt simulated client";
+    public static final String SERIAL_NUMBER = "0000";
+    public static final String BOARD_NAME = "none";
+    public static final int PROTOCOL_VERSION_MAJOR = 0;
+    public static final int PROTOCOL_VERSION_MINOR = 1;
+    public static final int FIRMWARE_TYPE = 0x7f;
+    public static final int FIRMWARE_VERSION_MAJOR = 0;
+    public static final int FIRMWARE_VERSION_MINOR = 1;
+    public static final int HARDWARE_TYPE = 0x7f;
+    public static final int HARDWARE_REVISION = 0;
+    public static final int MAX_STEP_RATE = 100000;
+    public static final int HOST_TIMEOUT_SECONDS = 2;
+    public static final int QUEUE_SIZE = 128;
+    // 21.5 degree Celsius in 0.1 degree steps
+    public static final int TEMPERATURE = 215;
+    public static final int DEVICE_STATUS_OK = 0;
+    // number of devices for each device type
+    private static final int[] DEVICE_COUNT = {0, 4, 2, 2, 3, 2, 2, 1};
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private final OutputStream toHost;
+
+    // received bytes from the host
+    private final byte[] order = new byte[2 * FrameBuilder.MAX_FRAME_LENGTH];
+    private int orderBytes = 0;
+
+    // the last reply is send again if the host repeats the order
+    private final byte[] reply = new byte[FrameBuilder.MAX_FRAME_LENGTH];
+    private int replyLength = 0;
+    private int lastSequenceNumber = -1;
+    // receipt errors do not replace the last reply: the host repeats its last order after them
+    private final byte[] errorReply = new byte[Protocol.REPLY_POS_OF_START_OF_PARAMETER + 2];
+
+    // longer order frames get rejected with "unable to accept frame"
+    private int maxFrameLength = FrameBuilder.MAX_FRAME_LENGTH;
+    private boolean stopped = true;
+    private byte stoppedCause = Protocol.CAUSE_RESET;
+    private boolean stepperControlActive = false;
+    private int queuedBlocks = 0;
+    private int executedBlocks = 0;
+    private final HashMap<String, String> firmwareConfiguration = new HashMap<String, String>();
+
+    public SimulatedClient(OutputStream toHost)
+    {
+        this.toHost = toHost;
+    }
+
+    /**
+     * @param length longest order frame (sync byte to CRC) that the client accepts.
+     */
+    public synchronized void setMaxFrameLength(final int length)
+    {
+        maxFrameLength = Math.max(Protocol.ORDER_POS_OF_START_OF_PARAMETER + 1,
+                                  Math.min(length, FrameBuilder.MAX_FRAME_LENGTH));
+    }
+
+    /** handles bytes from the host.
+     *
+     * @param data received bytes
+     * @param offset first byte is at this index in data
+     * @param length number of received bytes
+     */
+    public synchronized void receive(final byte[] data, final int offset, final int length)
+    {
+        int done = 0;
+        while(done < length)
+        {
+            final int num = Math.min(length - done, order.length - orderBytes);
+            System.arraycopy(data, offset + done, order, orderBytes, num);
+            orderBytes = orderBytes + num;
+            done = done + num;
+            while(true == handleOrder())
+            {
+                // handled one frame -> try the next one
+            }
+        }
+    }
+
+    /**
+     * @return true if a frame has been handled, false if more bytes are needed.
+     */
+    private boolean handleOrder()
+    {
+        // search the Sync byte
+        int start = 0;
+        while((start < orderBytes) && (Protocol.START_OF_HOST_FRAME != order[start]))
+        {
+            start++;
+        }
+        if(0 < start)
+        {
+            log.trace("skipped {} bytes", start);
+            consume(start);
+        }
+        if(2 > orderBytes)
+        {
+            return false;
+        }
+        final int length = 0xff & order[Protocol.ORDER_POS_OF_LENGTH];
+        if(2 > length)
+        {
+            sendReceiptError(0, Protocol.RESPONSE_BAD_FRAME);
+            consume(2);
+            return true;
+        }
+        if(length + 3 > orderBytes)
+        {
+            return false;
+        }
+        final int sequenceNumber = 0x0f & order[Protocol.ORDER_POS_OF_CONTROL];
+        if(order[length + 2] != Crc8.calculate(order, 1, length + 1))
+        {
+            sendReceiptError(sequenceNumber, Protocol.RESPONSE_BAD_ERROR_CHECK_CODE);
+            consume(length + 3);
+            return true;
+        }
+        if(length + 3 > maxFrameLength)
+        {
+            sendReceiptError(sequenceNumber, Protocol.RESPONSE_UNABLE_TO_ACCEPT_FRAME);
+            consume(length + 3);
+            return true;
+        }
+        if(sequenceNumber == lastSequenceNumber)
+        {
+            // The host did not get our reply
+            log.trace("repeating last reply");
+            write(reply, 0, replyLength);
+        }
+        else
+        {
+            lastSequenceNumber = sequenceNumber;
+            execute(sequenceNumber, order[Protocol.ORDER_POS_OF_ORDER_CODE], Protocol.ORDER_POS_OF_START_OF_PARAMETER, length - 2);
+        }
+        consume(length + 3);
+        return true;
+    }
+
+    private void consume(final int num)
+    {
+        System.arraycopy(order, num, order, 0, orderBytes - num);
+        orderBytes = orderBytes - num;
+    }
+
+    private void execute(final int seq, final byte orderCode, final int param, final int paramLength)
+    {
+        // the queue makes progress with every order
+        if(0 < queuedBlocks)
+        {
+            queuedBlocks--;
+            executedBlocks++;
+        }
+        switch(orderCode)
+        {
+        case Protocol.ORDER_RESUME:
+            if((1 == paramLength) && (Protocol.CLEAR_STOPPED_STATE == order[param]))
+            {
+                stopped = false;
+                sendReply(seq, Protocol.RESPONSE_OK);
+            }
+            else if(true == stopped)
+            {
+                sendStopped(seq);
+            }
+            else
+            {
+                sendReply(seq, Protocol.RESPONSE_OK);
+            }
+            return;
+
+        case Protocol.ORDER_RESET:
+            sendReply(seq, Protocol.RESPONSE_OK);
+            reset();
+            return;
+
+        case Protocol.ORDER_STOP_PRINT:
+            stopped = true;
+            stoppedCause = Protocol.CAUSE_USER_REQUESTED;
+            queuedBlocks = 0;
+            sendReply(seq, Protocol.RESPONSE_OK);
+            return;
+
+        default:
+            break;
+        }
+
+        if(true == stopped)
+        {
+            sendStopped(seq);
+            return;
+        }
+
+        switch(orderCode)
+        {
+        case Protocol.ORDER_REQ_INFORMATION:
+            if(1 != paramLength)
+            {
+                sendBadParameterFormat(seq);
+            }
+            else
+            {
+                sendInformation(seq, 0xff & order[param]);
+            }
+            break;
+
+        case Protocol.ORDER_REQUEST_DEVICE_COUNT:
+            if(1 != paramLength)
+            {
+                sendBadParameterFormat(seq);
+            }
+            else
+            {
+                final int type = 0xff & order[param];
+                if((Protocol.DEVICE_TYPE_FIRST > type) || (Protocol.DEVICE_TYPE_LAST < type))
+                {
+                    sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_INVALID_DEVICE_TYPE);
+                }
+                else
+                {
+                    sendReply(seq, Protocol.RESPONSE_OK, DEVICE_COUNT[type]);
+                }
+            }
+            break;
+
+        case Protocol.ORDER_REQ_TEMPERATURE:
+            if(1 != paramLength)
+            {
+                sendBadParameterFormat(seq);
+            }
+            else if(false == isValidDevice(Protocol.DEVICE_TYPE_TEMPERATURE_SENSOR, 0xff & order[param]))
+            {
+                sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_INVALID_DEVICE_NUMBER);
+            }
+            else
+            {
+                startReply(seq, Protocol.RESPONSE_OK);
+                addToReply(TEMPERATURE >> 8);
+                addToReply(TEMPERATURE);
+                finishReply();
+            }
+            break;
+
+        case Protocol.ORDER_REQ_INPUT:
+            if(1 != paramLength)
+            {
+                sendBadParameterFormat(seq);
+            }
+            else if(false == isValidDevice(Protocol.DEVICE_TYPE_INPUT, 0xff & order[param]))
+            {
+                sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_INVALID_DEVICE_NUMBER);
+            }
+            else
+            {
+                sendReply(seq, Protocol.RESPONSE_OK, Protocol.INPUT_LOW);
+            }
+            break;
+
+        case Protocol.ORDER_REQUEST_DEVICE_STATUS:
+            if(2 != paramLength)
+            {
+                sendBadParameterFormat(seq);
+            }
+            else
+            {
+                final int type = 0xff & order[param];
+                if((Protocol.DEVICE_TYPE_FIRST > type) || (Protocol.DEVICE_TYPE_LAST < type))
+                {
+                    sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_INVALID_DEVICE_TYPE);
+                }
+                else if(false == isValidDevice(type, 0xff & order[param + 1]))
+                {
+                    sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_INVALID_DEVICE_NUMBER);
+                }
+                else
+                {
+                    sendReply(seq, Protocol.RESPONSE_OK, DEVICE_STATUS_OK);
+                }
+            }
+            break;
+
+        case Protocol.ORDER_WRITE_FIRMWARE_CONFIGURATION:
+            writeFirmwareConfiguration(seq, param, paramLength);
+            break;
+
+        case Protocol.ORDER_READ_FIRMWARE_CONFIGURATION:
+        {
+            final String value = firmwareConfiguration.get(new String(order, param, paramLength, UTF8));
+            if(null == value)
+            {
+                sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_BAD_PARAMETER_VALUE);
+            }
+            else
+            {
+                sendReply(seq, Protocol.RESPONSE_OK, value);
+            }
+            break;
+        }
+
+        case Protocol.ORDER_ACTIVATE_STEPPER_CONTROL:
+            if(1 != paramLength)
+            {
+                sendBadParameterFormat(seq);
+            }
+            else
+            {
+                stepperControlActive = (0 != order[param]);
+                sendReply(seq, Protocol.RESPONSE_OK);
+            }
+            break;
+
+        case Protocol.ORDER_CONFIGURE_AXIS_MOVEMENT_RATES:
+            if(5 != paramLength)
+            {
+                sendBadParameterFormat(seq);
+            }
+            else if(false == isValidStepper(0xff & order[param]))
+            {
+                sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_INVALID_DEVICE_NUMBER);
+            }
+            else if(false == isValidRate(getU32(param + 1)))
+            {
+                sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_BAD_PARAMETER_VALUE);
+            }
+            else
+            {
+                sendReply(seq, Protocol.RESPONSE_OK);
+            }
+            break;
+
+        case Protocol.ORDER_CONFIGURE_MOVEMENT_UNDERRUN_AVOIDANCE_PARAMETERS:
+            if(9 != paramLength)
+            {
+                sendBadParameterFormat(seq);
+            }
+            else if(false == isValidStepper(0xff & order[param]))
+            {
+                sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_INVALID_DEVICE_NUMBER);
+            }
+            else if(   (false == isValidRate(getU32(param + 1)))
+                    || (0 == getU32(param + 5)) )
+            {
+                sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_BAD_PARAMETER_VALUE);
+            }
+            else
+            {
+                sendReply(seq, Protocol.RESPONSE_OK);
+            }
+            break;
+
+        case Protocol.ORDER_QUEUE_COMMAND_BLOCKS:
+            queueCommandBlocks(seq, param, paramLength);
+            break;
+
+        case Protocol.ORDER_CLEAR_COMMAND_BLOCK_QUEUE:
+            queuedBlocks = 0;
+            sendQueueStatus(seq, Protocol.RESPONSE_OK);
+            break;
+
+        default:
+            sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_UNKNOWN_ORDER);
+            break;
+        }
+    }
+
+    private void reset()
+    {
+        stopped = true;
+        stoppedCause = Protocol.CAUSE_RESET;
+        stepperControlActive = false;
+        queuedBlocks = 0;
+        executedBlocks = 0;
+        lastSequenceNumber = -1;
+        firmwareConfiguration.clear();
+    }
+
+    public synchronized boolean isStepperControlActive()
+    {
+        return stepperControlActive;
+    }
+
+    private boolean isValidStepper(final int number)
+    {
+        return isValidDevice(Protocol.DEVICE_TYPE_STEPPER, number);
+    }
+
+    private boolean isValidDevice(final int type, final int number)
+    {
+        // the devices are numbered starting with 1
+        return (0 < number) && (DEVICE_COUNT[type] >= number);
+    }
+
+    private boolean isValidRate(final long rate)
+    {
+        return (0 < rate) && (MAX_STEP_RATE >= rate);
+    }
+
+    private long getU32(final int pos)
+    {
+        return ((long)(0xff & order[pos]) << 24)
+             | ((0xff & order[pos + 1]) << 16)
+             | ((0xff & order[pos + 2]) << 8)
+             |  (0xff & order[pos + 3]);
+    }
+
+    private void writeFirmwareConfiguration(final int seq, final int param, final int paramLength)
+    {
+        if(2 > paramLength)
+        {
+            sendBadParameterFormat(seq);
+            return;
+        }
+        final int nameLength = 0xff & order[param];
+        if((1 > nameLength) || (paramLength - 1 < nameLength))
+        {
+            sendBadParameterFormat(seq);
+            return;
+        }
+        final String name = new String(order, param + 1, nameLength, UTF8);
+        final String value = new String(order, param + 1 + nameLength, paramLength - 1 - nameLength, UTF8);
+        firmwareConfiguration.put(name, value);
+        sendReply(seq, Protocol.RESPONSE_OK);
+    }
+
+    private void queueCommandBlocks(final int seq, final int param, final int paramLength)
+    {
+        // count the blocks: each block starts with its length
+        int pos = 0;
+        int numBlocks = 0;
+        while(pos < paramLength)
+        {
+            final int blockLength = 0xff & order[param + pos];
+            if(2 > blockLength)
+            {
+                sendBadParameterFormat(seq);
+                return;
+            }
+            pos = pos + blockLength;
+            numBlocks++;
+        }
+        if(pos != paramLength)
+        {
+            sendBadParameterFormat(seq);
+            return;
+        }
+        if(QUEUE_SIZE < queuedBlocks + numBlocks)
+        {
+            sendQueueStatus(seq, Protocol.RESPONSE_ORDER_SPECIFIC_ERROR);
+            return;
+        }
+        queuedBlocks = queuedBlocks + numBlocks;
+        sendQueueStatus(seq, Protocol.RESPONSE_OK);
+    }
+
+    private void sendQueueStatus(final int seq, final byte replyCode)
+    {
+        final int free = QUEUE_SIZE - queuedBlocks;
+        startReply(seq, replyCode);
+        addToReply(free >> 8);
+        addToReply(free);
+        addToReply(queuedBlocks >> 8);
+        addToReply(queuedBlocks);
+        addToReply(executedBlocks >> 8);
+        addToReply(executedBlocks);
+        finishReply();
+    }
+
+    private void sendInformation(final int seq, final int which)
+    {
+        switch(which)
+        {
+        case Protocol.INFO_FIRMWARE_NAME_STRING: sendReply(seq, Protocol.RESPONSE_OK, FIRMWARE_NAME); break;
+        case Protocol.INFO_SERIAL_NUMBER_STRING: sendReply(seq, Protocol.RESPONSE_OK, SERIAL_NUMBER); break;
+        case Protocol.INFO_BOARD_NAME_STRING: sendReply(seq, Protocol.RESPONSE_OK, BOARD_NAME); break;
+        case Protocol.INFO_GIVEN_NAME_STRING: sendReply(seq, Protocol.RESPONSE_OK, firmwareConfigurationOr("name", "simulator")); break;
+        case Protocol.INFO_SUPPORTED_PROTOCOL_VERSION_MAJOR: sendReply(seq, Protocol.RESPONSE_OK, PROTOCOL_VERSION_MAJOR); break;
+        case Protocol.INFO_SUPPORTED_PROTOCOL_VERSION_MINOR: sendReply(seq, Protocol.RESPONSE_OK, PROTOCOL_VERSION_MINOR); break;
+        case Protocol.INFO_LIST_OF_SUPPORTED_PROTOCOL_EXTENSIONS:
+            startReply(seq, Protocol.RESPONSE_OK);
+            addToReply(Protocol.INFO_PROTOCOL_EXTENSION_STEPPER_CONTROL);
+            addToReply(Protocol.INFO_PROTOCOL_EXTENSION_QUEUED_COMMAND);
+            addToReply(Protocol.INFO_PROTOCOL_EXTENSION_BASIC_MOVE);
+            finishReply();
+            break;
+        case Protocol.INFO_FIRMWARE_TYPE: sendReply(seq, Protocol.RESPONSE_OK, FIRMWARE_TYPE); break;
+        case Protocol.INFO_FIRMWARE_REVISION_MAJOR: sendReply(seq, Protocol.RESPONSE_OK, FIRMWARE_VERSION_MAJOR); break;
+        case Protocol.INFO_FIRMWARE_REVISION_MINOR: sendReply(seq, Protocol.RESPONSE_OK, FIRMWARE_VERSION_MINOR); break;
+        case Protocol.INFO_HARDWARE_TYPE: sendReply(seq, Protocol.RESPONSE_OK, HARDWARE_TYPE); break;
+        case Protocol.INFO_HARDWARE_REVISION: sendReply(seq, Protocol.RESPONSE_OK, HARDWARE_REVISION); break;
+        case Protocol.INFO_MAX_STEP_RATE:
+            startReply(seq, Protocol.RESPONSE_OK);
+            addToReply(MAX_STEP_RATE >> 24);
+            addToReply(MAX_STEP_RATE >> 16);
+            addToReply(MAX_STEP_RATE >> 8);
+            addToReply(MAX_STEP_RATE);
+            finishReply();
+            break;
+        case Protocol.INFO_HOST_TIMEOUT: sendReply(seq, Protocol.RESPONSE_OK, HOST_TIMEOUT_SECONDS); break;
+        default:
+            sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_BAD_PARAMETER_VALUE);
+            break;
+        }
+    }
+
+    private String firmwareConfigurationOr(final String name, final String defaultValue)
+    {
+        final String res = firmwareConfiguration.get(name);
+        if(null == res)
+        {
+            return defaultValue;
+        }
+        return res;
+    }
+
+    private void sendStopped(final int seq)
+    {
+        startReply(seq, Protocol.RESPONSE_STOPPED);
+        if(Protocol.CAUSE_RESET == stoppedCause)
+        {
+            addToReply(Protocol.RECOVERY_CLEARED);
+        }
+        else
+        {
+            addToReply(Protocol.RECOVERY_PERSISTS);
+        }
+        addToReply(stoppedCause);
+        finishReply();
+    }
+
+    private void sendBadParameterFormat(final int seq)
+    {
+        sendReply(seq, Protocol.RESPONSE_GENERIC_APPLICATION_ERROR, Protocol.RESPONSE_BAD_PARAMETER_FORMAT);
+    }
+
+    private void sendReceiptError(final int seq, final int cause)
+    {
+        errorReply[Protocol.REPLY_POS_OF_SYNC] = (byte)Protocol.START_OF_CLIENT_FRAME;
+        errorReply[Protocol.REPLY_POS_OF_LENGTH] = (byte)(Protocol.REPLY_POS_OF_START_OF_PARAMETER + 1 - 2);
+        errorReply[Protocol.REPLY_POS_OF_CONTROL] = (byte)(0x0f & seq);
+        errorReply[Protocol.REPLY_POS_OF_REPLY_CODE] = Protocol.RESPONSE_FRAME_RECEIPT_ERROR;
+        errorReply[Protocol.REPLY_POS_OF_START_OF_PARAMETER] = (byte)(0xff & cause);
+        errorReply[Protocol.REPLY_POS_OF_START_OF_PARAMETER + 1] = Crc8.calculate(errorReply, 1, Protocol.REPLY_POS_OF_START_OF_PARAMETER);
+        write(errorReply, 0, errorReply.length);
+    }
+
+    private void sendReply(final int seq, final byte replyCode)
+    {
+        startReply(seq, replyCode);
+        finishReply();
+    }
+
+    private void sendReply(final int seq, final byte replyCode, final int parameter)
+    {
+        startReply(seq, replyCode);
+        addToReply(parameter);
+        finishReply();
+    }
+
+    private void sendReply(final int seq, final byte replyCode, final String parameter)
+    {
+        startReply(seq, replyCode);
+        final byte[] str = parameter.getBytes(UTF8);
+        System.arraycopy(str, 0, reply, replyLength, str.length);
+        replyLength = replyLength + str.length;
+        finishReply();
+    }
+
+    private void startReply(final int seq, final byte replyCode)
+    {
+        reply[Protocol.REPLY_POS_OF_SYNC] = (byte)Protocol.START_OF_CLIENT_FRAME;
+        reply[Protocol.REPLY_POS_OF_CONTROL] = (byte)(0x0f & seq);
+        reply[Protocol.REPLY_POS_OF_REPLY_CODE] = replyCode;
+        replyLength = Protocol.REPLY_POS_OF_START_OF_PARAMETER;
+    }
+
+    private void addToReply(final int value)
+    {
+        reply[replyLength] = (byte)(0xff & value);
+        replyLength++;
+    }
+
+    private void finishReply()
+    {
+        reply[Protocol.REPLY_POS_OF_LENGTH] = (byte)(replyLength - 2);
+        reply[replyLength] = Crc8.calculate(reply, 1, replyLength - 1);
+        replyLength++;
+        write(reply, 0, replyLength);
+    }
+
+    private void write(final byte[] data, final int offset, final int length)
+    {
+        try
+        {
+            toHost.write(data, offset, length);
+            toHost.flush();
+        }
+        catch(IOException e)
+        {
+            log.error("Failed to send reply - Exception !");
+            e.printStackTrace();
+        }
+    }
+
+}
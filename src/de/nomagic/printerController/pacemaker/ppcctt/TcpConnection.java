@@ -0,0 +1,224 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** connection to a client behind a TCP to serial bridge (ser2net,..).
+ *
+ * The descriptor looks like this: tcp://host:port
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class TcpConnection extends AbstractTransport
+{
+    public static final String DESCRIPTOR_PREFIX = "tcp://";
+    public static final int TIMEOUT_CONNECT_MS = 1000;
+    public static final int TIMEOUT_SEND_MS = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private SocketChannel channel;
+    private Selector readSelector;
+    private Selector writeSelector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BATCH_SIZE);
+    // also cleared by the receive thread when the other side closed the connection
+    private volatile boolean connected = false;
+
+    public TcpConnection()
+    {
+    }
+
+    public static boolean isTcpDescriptor(String descriptor)
+    {
+        return descriptor.startsWith(DESCRIPTOR_PREFIX);
+    }
+
+    @Override
+    public boolean establishConnectionTo(String descriptor)
+    {
+        if(false == isTcpDescriptor(descriptor))
+        {
+            log.error("{} is not a TCP connection !", descriptor);
+            return false;
+        }
+        final String hostAndPort = descriptor.substring(DESCRIPTOR_PREFIX.length());
+        final int sep = hostAndPort.lastIndexOf(':');
+        if(1 > sep)
+        {
+            log.error("{} does not specify host and port !", descriptor);
+            return false;
+        }
+        final String host = hostAndPort.substring(0, sep);
+        final int port;
+        try
+        {
+            port = Integer.parseInt(hostAndPort.substring(sep + 1));
+        }
+        catch(NumberFormatException e)
+        {
+            log.error("{} has an invalid port number !", descriptor);
+            return false;
+        }
+        try
+        {
+            channel = SocketChannel.open();
+            // frames are small and must not wait for more data
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.socket().connect(new InetSocketAddress(host, port), TIMEOUT_CONNECT_MS);
+            channel.configureBlocking(false);
+            readSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+            // nothing received yet
+            readBuffer.clear().limit(0);
+            connected = true;
+            startReceiving(hostAndPort);
+            log.info("TCP connection to {} is open", hostAndPort);
+            return true;
+        }
+        catch(IOException e)
+        {
+            log.error("Could not connect to {} !", hostAndPort);
+            e.printStackTrace();
+        }
+        close(); // In case that we had a problem after the open
+        return false;
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return connected;
+    }
+
+    @Override
+    public boolean close()
+    {
+        connected = false;
+        stopReceiving();
+        if(null == channel)
+        {
+            return false;
+        }
+        try
+        {
+            channel.close();
+            if(null != readSelector)
+            {
+                readSelector.close();
+            }
+            if(null != writeSelector)
+            {
+                writeSelector.close();
+            }
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+        channel = null;
+        return true;
+    }
+
+    @Override
+    protected boolean writeData(final byte[] data, int offset, int length)
+    {
+        if(false == connected)
+        {
+            log.error("Failed to send Request - not connected !");
+            return false;
+        }
+        try
+        {
+            while(0 < length)
+            {
+                writeBuffer.clear();
+                final int num = Math.min(length, writeBuffer.capacity());
+                writeBuffer.put(data, offset, num);
+                writeBuffer.flip();
+                while(0 < writeBuffer.remaining())
+                {
+                    if(0 == channel.write(writeBuffer))
+                    {
+                        // socket buffer is full
+                        if(0 == writeSelector.select(TIMEOUT_SEND_MS))
+                        {
+                            log.error("Failed to send Request - Timeout !");
+                            return false;
+                        }
+                        writeSelector.selectedKeys().clear();
+                    }
+                }
+                offset = offset + num;
+                length = length - num;
+            }
+            return true;
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+            log.error("Failed to send Request - Exception !");
+            return false;
+        }
+    }
+
+    /** reads from the socket into the receive buffer.
+     *
+     * If the receive buffer is full the rest of the last read stays in
+     * readBuffer and nothing more is read from the socket until it has been
+     * taken. The socket buffer then fills up and TCP slows the bridge down,
+     * so no bytes get lost.
+     */
+    @Override
+    protected void receiveData() throws IOException
+    {
+        if(0 == readBuffer.remaining())
+        {
+            if(0 == readSelector.select(RECEIVE_POLL_TIMEOUT_MS))
+            {
+                return;
+            }
+            readSelector.selectedKeys().clear();
+            readBuffer.clear();
+            final int res = channel.read(readBuffer);
+            if(-1 == res)
+            {
+                connected = false;
+                readBuffer.limit(0);
+                throw new IOException("Connection closed by remote side !");
+            }
+            readBuffer.flip();
+        }
+        if(   (0 == receiveBuffer.fillFrom(readBuffer, RECEIVE_POLL_TIMEOUT_MS))
+           && (receiveBuffer.getSize() == receiveBuffer.available()) )
+        {
+            log.warn("Receive Buffer is full !");
+        }
+    }
+
+}
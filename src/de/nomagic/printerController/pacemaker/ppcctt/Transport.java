@@ -0,0 +1,84 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+/** connection to a Pacemaker client.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public interface Transport
+{
+    /** opens the connection.
+     *
+     * @param descriptor describes the connection (port name and settings, host and port,..)
+     * @return true = success; false = failed to connect
+     */
+    boolean establishConnectionTo(String descriptor);
+
+    boolean isConnected();
+
+    /**
+     * @return true if a connection has been closed.
+     */
+    boolean close();
+
+    /** sends a request frame to the client.
+     *
+     * @param data the bytes of the frame
+     * @param offset frame bytes starts at this offset in the buffer.
+     * @param length send only this many bytes. May be 0 !
+     * @return true = success; false = failed to send
+     */
+    boolean sendRequest(byte[] data, int offset, int length);
+
+    /** writes all requests that have been collected by write coalescing.
+     *
+     * @return true = success; false = failed to send
+     */
+    boolean flush();
+
+    /** collects requests and writes several of them at once.
+     *
+     * @param maxDelayMs a request waits at most this long before it is written. 0 = write each request at once.
+     */
+    void setWriteCoalescing(int maxDelayMs);
+
+    /** simulates a bad cable. Set before sending the first request.
+     *
+     * @param toClient damages the requests. null = no damage.
+     * @param fromClient damages the bytes from the client before they get parsed. null = no damage.
+     */
+    void setLineNoise(LineNoise toClient, LineNoise fromClient);
+
+    /** waits for the next valid frame from the client.
+     *
+     * @return view on the received frame. Only valid until the next call. null if nothing was received.
+     */
+    ReplyView getFrame();
+
+    /** waits for the next valid frame from the client.
+     *
+     * All timeouts are in nanoseconds and start when this method gets called.
+     *
+     * @param firstByteNs wait at most this long for the first byte of the frame.
+     * @param interByteNs wait at most this long for the next byte inside the frame.
+     * @param wholeFrameNs the complete frame must have been received after this time.
+     * @return view on the received frame. Only valid until the next call. null if nothing was received in time.
+     */
+    ReplyView getFrame(long firstByteNs, long interByteNs, long wholeFrameNs);
+
+    byte getCRCfor(byte[] buf, int length, int offset);
+}
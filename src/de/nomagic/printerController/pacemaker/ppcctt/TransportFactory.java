@@ -0,0 +1,60 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker.ppcctt;
+
+/** selects the transport that fits the connection descriptor.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public final class TransportFactory
+{
+    private TransportFactory()
+    {
+        // Not used !
+    }
+
+    /**
+     * @param descriptor the connection descriptor given by the user.
+     * @return a not yet connected transport.
+     */
+    public static Transport createFor(String descriptor)
+    {
+        return createFor(descriptor, false);
+    }
+
+    /**
+     * @param descriptor the connection descriptor given by the user.
+     * @param useLinuxSerial true = serial ports use the Linux tty driver directly instead of purejavacomm.
+     * @return a not yet connected transport.
+     */
+    public static Transport createFor(String descriptor, boolean useLinuxSerial)
+    {
+        if(true == TcpConnection.isTcpDescriptor(descriptor))
+        {
+            return new TcpConnection();
+        }
+        if(true == MemoryConnection.isMemoryDescriptor(descriptor))
+        {
+            return new MemoryConnection();
+        }
+        // default: serial port
+        if(true == useLinuxSerial)
+        {
+            return new LinuxUartConnection();
+        }
+        return new UartConnection();
+    }
+}
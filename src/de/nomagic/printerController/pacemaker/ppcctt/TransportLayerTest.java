@@ -17,183 +17,490 @@ package de.nomagic.printerController.pacemaker.ppcctt;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/**
+/** sends orders to the client and receives the replies.
+ *
+ * If retransmissions are enabled an order that did not get a reply in time,
+ * or that the client reported as not received (frame receipt error), is send
+ * again with the same sequence number. The client recognises the repeated
+ * sequence number and sends its last reply again, instead of executing the
+ * order twice. Between the attempts the wait gets doubled.
+ *
  * @author Lars P&ouml;tter
  * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
  *
  */
 public class TransportLayerTest
 {
-    private final UartConnection client;
+    public static final int RETRANSMISSION_BACKOFF_MS = 10;
+    public static final int MAX_RETRANSMISSION_BACKOFF_MS = 640;
+
+    private final Transport client;
     private int curSequenceCounter = 0;
+    private final FrameBuilder encoder = new FrameBuilder();
+    private final ReplyTimeouts timeouts = new ReplyTimeouts();
+    private byte lastOrder = 0;
+    private boolean hasSendOrder = false;
+    private final RttEstimator rtt = new RttEstimator();
+    private boolean useAdaptiveTimeouts = true;
+    private long sendTime = 0;
+    private boolean waitingForRtt = false;
+    private int lastFrameLength = 0;
+    private int maxRetransmissions = 0;
+    private final LinkStatistics stats = new LinkStatistics();
+    private final DebugChannel debugChannel = new DebugChannel();
+    private final OrderLatencies latencies = new OrderLatencies();
+    private boolean waitingForReply = false;
     private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
 
-    public TransportLayerTest(UartConnection client)
+    public TransportLayerTest(Transport client)
     {
         this.client = client;
     }
 
-    public boolean send(byte order, byte[] parameter)
+    /** starts a new order frame in the send buffer.
+     *
+     * Add the parameters to the returned builder and then call sendOrder().
+     *
+     * @param order the order code
+     * @return the builder for the parameters.
+     */
+    public FrameBuilder startOrder(byte order)
+    {
+        lastOrder = order;
+        hasSendOrder = true;
+        return encoder.startOrder(order, getSequenceCounterValue());
+    }
+
+    /**
+     * @return the timeouts used to wait for replies. Can be changed.
+     */
+    public ReplyTimeouts getTimeouts()
+    {
+        return timeouts;
+    }
+
+    public RttEstimator getRttEstimator()
+    {
+        return rtt;
+    }
+
+    /**
+     * @param adaptive true = the time to wait for the first byte of a reply is learned
+     *                 from the round trip times of earlier orders with the same order code.
+     */
+    public void setAdaptiveTimeouts(boolean adaptive)
+    {
+        useAdaptiveTimeouts = adaptive;
+    }
+
+    /**
+     * @param max how often an order may be send again. 0 = never.
+     */
+    public void setMaxRetransmissions(int max)
+    {
+        maxRetransmissions = Math.max(0, max);
+    }
+
+    public int getMaxRetransmissions()
+    {
+        return maxRetransmissions;
+    }
+
+    public LinkStatistics getLinkStatistics()
+    {
+        return stats;
+    }
+
+    /**
+     * @return the time from sending an order until its reply arrived, for each order code.
+     */
+    public OrderLatencies getLatencies()
     {
-        byte[] frame = new byte[5 + parameter.length];
-        frame[0] = Protocol.START_OF_HOST_FRAME;
-        frame[1] = (byte) (0xff & (2 + parameter.length)); // Length
-        frame[2] = getSequenceCounterValue(); // Control
-        frame[3] = order;
-        for(int i = 0; i < parameter.length; i++)
+        return latencies;
+    }
+
+    /** sends the order that has been prepared with startOrder().
+     *
+     * @return true = success; false = failed to send
+     */
+    public boolean sendOrder()
+    {
+        final int length = encoder.finish();
+        lastFrameLength = length;
+        stats.countOrder();
+        final boolean res = client.sendRequest(encoder.getBuffer(), 0, length);
+        sendTime = System.nanoTime();
+        if(true == res)
         {
-            frame[4 + i] = parameter[i];
+            stats.countSentFrame(length);
         }
-        frame[4 + parameter.length] = client.getCRCfor(frame, 3 +  parameter.length, 1); //Sync is not part of CRC
-        return client.sendRequest(frame);
+        waitingForRtt = res;
+        waitingForReply = res;
+        return res;
+    }
+
+    public boolean send(byte order, byte[] parameter)
+    {
+        startOrder(order).addBytes(parameter);
+        return sendOrder();
     }
 
 
     public boolean send(byte order, int parameter)
     {
-        byte[] frame = new byte[6];
-        frame[0] = Protocol.START_OF_HOST_FRAME;
-        frame[1] = 3; // Length
-        frame[2] = getSequenceCounterValue(); // Control
-        frame[3] = order;
-        frame[4] = (byte)parameter;
-        frame[5] = client.getCRCfor(frame, 4, 1); //Sync is not part of CRC
-        return client.sendRequest(frame);
+        startOrder(order).addU8(parameter);
+        return sendOrder();
     }
 
     public boolean send_byte_U32(byte order, int parameter, long para2)
     {
-        byte[] frame = new byte[10];
-        frame[0] = Protocol.START_OF_HOST_FRAME;
-        frame[1] = 7; // Length
-        frame[2] = getSequenceCounterValue(); // Control
-        frame[3] = order;
-        frame[4] = (byte)parameter;
-        frame[5] = (byte)((para2 >>24) & 0xff);
-        frame[6] = (byte)((para2 >>16) & 0xff);
-        frame[7] = (byte)((para2 >>8 ) & 0xff);
-        frame[8] = (byte)( para2       & 0xff);
-        frame[9] = client.getCRCfor(frame, 8, 1); //Sync is not part of CRC
-        return client.sendRequest(frame);
+        startOrder(order).addU8(parameter).addU32(para2);
+        return sendOrder();
     }
 
-    public byte[] getFrame()
+    /** leaves the stopped mode, so that requests get real replies and not only "stopped".
+     *
+     * @return true = success; false = client did not accept the order.
+     */
+    public boolean clearStoppedState()
     {
-        byte[] frame = client.getFrame();
-        if(frame == null)
+        startOrder(Protocol.ORDER_RESUME).addU8(Protocol.CLEAR_STOPPED_STATE);
+        if(false == sendOrder())
         {
-            return null;
+            log.error("Failed to send order !");
+            return false;
         }
-        if(frame.length < 5)
+        final ReplyView response = getFrame();
+        if(false == checkReply(response, Protocol.RESPONSE_OK, 0))
         {
-            log.error("Received some Bytes that have not been a valid Frame !");
-            return null;
+            log.error("Could not leave the stopped mode !");
+            return false;
         }
-        if(frame[0] != Protocol.START_OF_CLIENT_FRAME)
+        IncrementSequenceCounter();
+        return true;
+    }
+
+    /** waits for the reply to the last order.
+     *
+     * Sends the order again if that is enabled and necessary.
+     *
+     * @return view on the reply. Only valid until the next call. null if no valid reply was received.
+     */
+    public ReplyView getFrame()
+    {
+        int attempt = 0;
+        ReplyView frame = getAnyFrame();
+        // nothing send -> nothing to repeat and nothing to count
+        while(true == hasSendOrder)
         {
-            log.error("Frame did not start with a Sync Byte !");
-            return null;
+            if(null == frame)
+            {
+                stats.countReplyTimeout();
+            }
+            else if(true == isReceiptError(frame))
+            {
+                stats.countReceiptError();
+                log.warn("Client reported a Frame Receipt Error !");
+            }
+            else if(   (0 < maxRetransmissions)
+                    && (frame.getSequenceNumber() == getPreviousSequenceCounterValue()) )
+            {
+                // the client got the last order twice and therefore send its reply again.
+                stats.countStaleReply();
+                frame = getAnyFrame();
+                continue;
+            }
+            else
+            {
+                break;
+            }
+            if(maxRetransmissions <= attempt)
+            {
+                break;
+            }
+            attempt++;
+            log.warn("Sending the order again ({}/{}) !", attempt, maxRetransmissions);
+            waitBeforeRetransmission(attempt);
+            if(false == retransmit(encoder.getBuffer(), lastFrameLength, (1 == attempt)))
+            {
+                log.error("Failed to send order !");
+                stats.countFailedOrder();
+                return null;
+            }
+            frame = getAnyFrame();
         }
-        if(frame[frame.length -1] != client.getCRCfor(frame, frame.length -2, 1))
+        if((true == hasSendOrder) && ((null == frame) || (true == isReceiptError(frame))))
+        {
+            stats.countFailedOrder();
+        }
+        if(frame == null)
         {
-            log.error("Frame had an invalid CRC !");
             return null;
         }
-        if(   (frame[1] == 0)
-           || (frame[1] == 1)
-           || (frame[1] != frame.length - 3) )
+        if(frame.getSequenceNumber() != getSequenceCounterValue())
         {
-            log.error("Frame did have an invalid Length Byte !");
+            log.error("Frame had an invalid Sequence Counter !");
             return null;
         }
-        if((frame[2] & 0x80) == 0x80)
+        final long roundTripNs = System.nanoTime() - sendTime;
+        if(true == waitingForReply)
         {
-            log.debug("Is a Debug Frame -> ignore");
-            return getFrame();
+            latencies.record(lastOrder, roundTripNs);
+            waitingForReply = false;
         }
-        if((frame[2] & 0x0f) != getSequenceCounterValue())
+        if(true == waitingForRtt)
         {
-            log.error("Frame had an invalid Sequence Counter !");
-            return null;
+            rtt.addSample(lastOrder, roundTripNs);
+            waitingForRtt = false;
         }
-        byte[] res = new byte[frame.length - 4];
-        res[0] = frame[3];
-        for(int i = 1; i < frame.length -4; i++)
+        return frame;
+    }
+
+    /**
+     * @param frame a valid reply
+     * @return true if the client could not receive the order.
+     */
+    static boolean isReceiptError(ReplyView frame)
+    {
+        return (Protocol.RESPONSE_FRAME_RECEIPT_ERROR == frame.getReplyCode());
+    }
+
+    /** copies the last send order frame.
+     *
+     * @param dst must be at least FrameBuilder.MAX_FRAME_LENGTH bytes long.
+     * @return length of the frame.
+     */
+    int copyLastFrame(byte[] dst)
+    {
+        System.arraycopy(encoder.getBuffer(), 0, dst, 0, lastFrameLength);
+        return lastFrameLength;
+    }
+
+    /** sends an order frame again, unchanged.
+     *
+     * @param frame the frame as it has been send before.
+     * @param length length of the frame.
+     * @param firstForThisOrder true if this order has not been send again before.
+     * @return true = success; false = failed to send
+     */
+    boolean retransmit(byte[] frame, int length, boolean firstForThisOrder)
+    {
+        stats.countRetransmission(firstForThisOrder);
+        // the reply could belong to any of the transmissions -> no round trip time (Karn)
+        waitingForRtt = false;
+        if(false == client.sendRequest(frame, 0, length))
         {
-            res[i] = frame[i + 3];
+            return false;
         }
-        return res;
+        stats.countSentFrame(length);
+        return true;
     }
 
+    /** waits before an order gets send again.
+     *
+     * The wait doubles with each attempt. Replies that arrive in this time
+     * belong to transmissions that have been given up and get dropped.
+     *
+     * @param attempt 1 = first retransmission
+     */
+    void waitBeforeRetransmission(int attempt)
+    {
+        dropRepliesFor(1000000L * Math.min(MAX_RETRANSMISSION_BACKOFF_MS,
+                                           RETRANSMISSION_BACKOFF_MS << Math.min(attempt - 1, 16)));
+    }
 
-    private byte getSequenceCounterValue()
+    /** drops the replies to orders that have been given up.
+     *
+     * Waits as long as the longest wait before a retransmission, so that
+     * the replies to the abandoned orders are not taken for the next ones.
+     */
+    void drainStaleReplies()
     {
-        return (byte)curSequenceCounter;
+        dropRepliesFor(1000000L * MAX_RETRANSMISSION_BACKOFF_MS);
     }
 
-    public void IncrementSequenceCounter()
+    private void dropRepliesFor(long durationNs)
     {
-        curSequenceCounter ++;
-        if(Protocol.MAX_SEQUENCE_NUMBER < curSequenceCounter)
+        final long end = System.nanoTime() + durationNs;
+        long remaining = durationNs;
+        while(0 < remaining)
         {
-            curSequenceCounter = 0;
+            final ReplyView stale = client.getFrame(remaining,
+                                                    timeouts.getDefaultNs(ReplyTimeouts.PHASE_INTER_BYTE),
+                                                    Math.max(remaining, timeouts.getDefaultNs(ReplyTimeouts.PHASE_WHOLE_FRAME)));
+            if(null == stale)
+            {
+                return;
+            }
+            stats.countReceivedFrame(stale.getFrameLength());
+            stats.countStaleReply();
+            remaining = end - System.nanoTime();
         }
     }
 
-    public String getStringFrom(byte[] response, int startPosition, int length)
+    /** waits for the next valid reply, regardless of its sequence number.
+     *
+     * Debug frames are handed to the debug channel. They do not extend the
+     * time to wait for the whole reply.
+     *
+     * @return view on the reply. Only valid until the next call. null if no valid reply was received.
+     */
+    public ReplyView getAnyFrame()
     {
-        StringBuffer sb = new StringBuffer();
-        if(response.length < startPosition + length)
+        if(true == hasSendOrder)
         {
-            log.error("Invalid Length for String !");
-            length = response.length - startPosition;
+            return getAnyFrame(lastOrder);
         }
-        for(int i = 0; i < length; i++)
+        return getAnyFrame(timeouts.getDefaultNs(ReplyTimeouts.PHASE_FIRST_BYTE),
+                           timeouts.getDefaultNs(ReplyTimeouts.PHASE_INTER_BYTE),
+                           timeouts.getDefaultNs(ReplyTimeouts.PHASE_WHOLE_FRAME));
+    }
+
+    /** waits for the next valid reply, with the timeouts of the given order.
+     *
+     * With several orders in flight the next reply belongs to the oldest of
+     * them and not to the order that has been send last.
+     *
+     * @param order order code of the order that the reply is expected for.
+     * @return view on the reply. Only valid until the next call. null if no valid reply was received.
+     */
+    public ReplyView getAnyFrame(byte order)
+    {
+        return getAnyFrame(order, Long.MAX_VALUE);
+    }
+
+    /** waits for the next valid reply, with the timeouts of the given order.
+     *
+     * Like getAnyFrame(order), but waits at most maxFirstByteNs for the start
+     * of the frame. Once a frame has started the normal timeouts apply.
+     *
+     * @param order order code of the order that the reply is expected for.
+     * @param maxFirstByteNs longest wait for the first byte of the frame.
+     * @return view on the reply. Only valid until the next call. null if no valid reply was received.
+     */
+    public ReplyView getAnyFrame(byte order, long maxFirstByteNs)
+    {
+        if(   (true == useAdaptiveTimeouts)
+           && (false == timeouts.hasValuesForOrder(order))
+           && (true == rtt.hasSamples(order)) )
         {
-            sb.append((char)response[i + startPosition]);
+            final long firstByteNs = rtt.getTimeoutNs(order);
+            return getAnyFrame(Math.min(firstByteNs, maxFirstByteNs),
+                               timeouts.getNs(order, ReplyTimeouts.PHASE_INTER_BYTE),
+                               Math.max(firstByteNs, timeouts.getNs(order, ReplyTimeouts.PHASE_WHOLE_FRAME)));
         }
-        return sb.toString();
+        return getAnyFrame(Math.min(timeouts.getNs(order, ReplyTimeouts.PHASE_FIRST_BYTE), maxFirstByteNs),
+                           timeouts.getNs(order, ReplyTimeouts.PHASE_INTER_BYTE),
+                           timeouts.getNs(order, ReplyTimeouts.PHASE_WHOLE_FRAME));
     }
 
-    public int getIntegerFrom(byte[] response, int startPosition, int length)
+    private ReplyView getAnyFrame(long firstByteNs, long interByteNs, long wholeFrameNs)
     {
-        if(response.length < startPosition + length)
+        final long end = System.nanoTime() + wholeFrameNs;
+        long remaining = wholeFrameNs;
+        while(0 < remaining)
         {
-            log.error("Invalid Length for Integer !");
-            length = response.length - startPosition;
+            final ReplyView frame = client.getFrame(Math.min(firstByteNs, remaining), interByteNs, remaining);
+            if(frame == null)
+            {
+                return null;
+            }
+            if(frame.getFrameLength() < 5)
+            {
+                log.error("Received some Bytes that have not been a valid Frame !");
+                return null;
+            }
+            if(frame.getSync() != Protocol.START_OF_CLIENT_FRAME)
+            {
+                log.error("Frame did not start with a Sync Byte !");
+                return null;
+            }
+            // the CRC has already been checked while the frame was received.
+            if(   (frame.getLength() == 0)
+               || (frame.getLength() == 1)
+               || (frame.getLength() != frame.getFrameLength() - 3) )
+            {
+                log.error("Frame did have an invalid Length Byte !");
+                return null;
+            }
+            stats.countReceivedFrame(frame.getFrameLength());
+            if(false == frame.isDebugFrame())
+            {
+                return frame;
+            }
+            debugChannel.offer(frame);
+            remaining = end - System.nanoTime();
         }
-        int res = 0;
-        for(int i = 0; i < length; i++)
+        return null;
+    }
+
+    public DebugChannel getDebugChannel()
+    {
+        return debugChannel;
+    }
+
+    /**
+     * @return order code of the last order started with startOrder().
+     */
+    byte getLastOrder()
+    {
+        return lastOrder;
+    }
+
+    byte getSequenceCounterValue()
+    {
+        return (byte)curSequenceCounter;
+    }
+
+    /** continues with the sequence numbers of another connection to the same client.
+     *
+     * The client would take an order with the sequence number of its last
+     * order as repetition and only send the old reply again.
+     *
+     * @param value the sequence number of the next order.
+     */
+    void setSequenceCounterValue(int value)
+    {
+        curSequenceCounter = value & Protocol.MAX_SEQUENCE_NUMBER;
+    }
+
+    private int getPreviousSequenceCounterValue()
+    {
+        return (curSequenceCounter - 1) & Protocol.MAX_SEQUENCE_NUMBER;
+    }
+
+    public void IncrementSequenceCounter()
+    {
+        curSequenceCounter ++;
+        if(Protocol.MAX_SEQUENCE_NUMBER < curSequenceCounter)
         {
-            res = res * 256;
-            res = res + (0xff & response[i + startPosition]);
+            curSequenceCounter = 0;
         }
-        return res;
     }
 
-    public boolean checkReply(byte[] response, byte expectedReplyCode, int expectedMinParameterLength)
+    public boolean checkReply(ReplyView response, byte expectedReplyCode, int expectedMinParameterLength)
     {
         if(response == null)
         {
             log.error("Did not get a Reply !");
             return false;
         }
-        if(response.length < expectedMinParameterLength + 1)
+        if(response.getParameterLength() < expectedMinParameterLength)
         {
             log.error("Reply too short !");
             return false;
         }
-        if(response[0] != expectedReplyCode)
+        if(response.getReplyCode() != expectedReplyCode)
         {
         	String repDescr;
-        	switch(response[0])
+        	switch(response.getReplyCode())
         	{
         	case 0x10: repDescr = "OK"; break;
         	case 0x11: repDescr = "Generic Application Error"; break;
         	case 0x12: repDescr = "Stopped"; break;
         	case 0x13: repDescr = "Order Specific Error"; break;
         	default:
-        		repDescr = "" +  response[0];
+        		repDescr = "" +  response.getReplyCode();
         		break;
         	}
         	log.error("Reply has wrong Reply Code ({})!", repDescr);
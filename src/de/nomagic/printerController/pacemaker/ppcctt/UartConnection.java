@@ -19,6 +19,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.TooManyListenersException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,19 +28,40 @@ import purejavacomm.CommPort;
 import purejavacomm.CommPortIdentifier;
 import purejavacomm.NoSuchPortException;
 import purejavacomm.PortInUseException;
+import purejavacomm.PureJavaIllegalStateException;
 import purejavacomm.SerialPort;
+import purejavacomm.SerialPortEvent;
+import purejavacomm.SerialPortEventListener;
 import purejavacomm.UnsupportedCommOperationException;
 
-/**
+/** connection to a client on a serial port (purejavacomm).
+ *
+ * The descriptor is: port:baudrate:data bits:parity:stop bits:RTS/CTS in:RTS/CTS out:XON/XOFF in:XON/XOFF out
+ *
+ * With output flow control (RTS/CTS out) the requests are written in small
+ * chunks. A chunk is only written when CTS is active, and the next one only
+ * after the driver has send out the last one. If the client stops the
+ * transmission the writer blocks, instead of filling the driver buffer, so
+ * the producer of the orders has to wait.
+ *
+ * XON/XOFF is refused: the frames are binary and contain the bytes 0x11 and
+ * 0x13, the driver would take them for XON and XOFF and remove them.
+ *
  * @author Lars P&ouml;tter
  * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
  *
  */
-public class UartConnection
+public class UartConnection extends AbstractTransport
 {
     public static final String OPTION_SEPERATOR = ":";
 
     public static final int TIMEOUT_PORT_OPEN_MS = 1000;
+    // with output flow control: bytes written before waiting for the driver to send them.
+    // Small clients have UART FIFOs of 16 to 64 bytes.
+    public static final int FLOW_CONTROL_CHUNK_SIZE = 64;
+    // with RTS/CTS: how long the client may keep CTS inactive before the write fails
+    public static final int CTS_TIMEOUT_MS = 1000;
+    private static final int CTS_POLL_MS = 10;
     // databits: 5,6,7,8
     public static final String[] bits = {"5", "6", "7", "8"};
     // parity: None, even, odd mark, space
@@ -47,34 +69,14 @@ public class UartConnection
     // stop bits: 1, 1.5, 2
     public static final String[] stop = {"1", "1 1/2", "2"};
 
-    private static byte[] crc_array =
-    {
-        //       0           1           2           3           4           5           6           7           8           9           A           B           C           D           E           F
-    /* 0*/ (byte)0x00, (byte)0xa6, (byte)0xea, (byte)0x4c, (byte)0x72, (byte)0xd4, (byte)0x98, (byte)0x3e, (byte)0xe4, (byte)0x42, (byte)0x0e, (byte)0xa8, (byte)0x96, (byte)0x30, (byte)0x7c, (byte)0xda,
-    /* 1*/ (byte)0x6e, (byte)0xc8, (byte)0x84, (byte)0x22, (byte)0x1c, (byte)0xba, (byte)0xf6, (byte)0x50, (byte)0x8a, (byte)0x2c, (byte)0x60, (byte)0xc6, (byte)0xf8, (byte)0x5e, (byte)0x12, (byte)0xb4,
-    /* 2*/ (byte)0xdc, (byte)0x7a, (byte)0x36, (byte)0x90, (byte)0xae, (byte)0x08, (byte)0x44, (byte)0xe2, (byte)0x38, (byte)0x9e, (byte)0xd2, (byte)0x74, (byte)0x4a, (byte)0xec, (byte)0xa0, (byte)0x06,
-    /* 3*/ (byte)0xb2, (byte)0x14, (byte)0x58, (byte)0xfe, (byte)0xc0, (byte)0x66, (byte)0x2a, (byte)0x8c, (byte)0x56, (byte)0xf0, (byte)0xbc, (byte)0x1a, (byte)0x24, (byte)0x82, (byte)0xce, (byte)0x68,
-    /* 4*/ (byte)0x1e, (byte)0xb8, (byte)0xf4, (byte)0x52, (byte)0x6c, (byte)0xca, (byte)0x86, (byte)0x20, (byte)0xfa, (byte)0x5c, (byte)0x10, (byte)0xb6, (byte)0x88, (byte)0x2e, (byte)0x62, (byte)0xc4,
-    /* 5*/ (byte)0x70, (byte)0xd6, (byte)0x9a, (byte)0x3c, (byte)0x02, (byte)0xa4, (byte)0xe8, (byte)0x4e, (byte)0x94, (byte)0x32, (byte)0x7e, (byte)0xd8, (byte)0xe6, (byte)0x40, (byte)0x0c, (byte)0xaa,
-    /* 6*/ (byte)0xc2, (byte)0x64, (byte)0x28, (byte)0x8e, (byte)0xb0, (byte)0x16, (byte)0x5a, (byte)0xfc, (byte)0x26, (byte)0x80, (byte)0xcc, (byte)0x6a, (byte)0x54, (byte)0xf2, (byte)0xbe, (byte)0x18,
-    /* 7*/ (byte)0xac, (byte)0x0a, (byte)0x46, (byte)0xe0, (byte)0xde, (byte)0x78, (byte)0x34, (byte)0x92, (byte)0x48, (byte)0xee, (byte)0xa2, (byte)0x04, (byte)0x3a, (byte)0x9c, (byte)0xd0, (byte)0x76,
-    /* 8*/ (byte)0x3c, (byte)0x9a, (byte)0xd6, (byte)0x70, (byte)0x4e, (byte)0xe8, (byte)0xa4, (byte)0x02, (byte)0xd8, (byte)0x7e, (byte)0x32, (byte)0x94, (byte)0xaa, (byte)0x0c, (byte)0x40, (byte)0xe6,
-    /* 9*/ (byte)0x52, (byte)0xf4, (byte)0xb8, (byte)0x1e, (byte)0x20, (byte)0x86, (byte)0xca, (byte)0x6c, (byte)0xb6, (byte)0x10, (byte)0x5c, (byte)0xfa, (byte)0xc4, (byte)0x62, (byte)0x2e, (byte)0x88,
-    /* A*/ (byte)0xe0, (byte)0x46, (byte)0x0a, (byte)0xac, (byte)0x92, (byte)0x34, (byte)0x78, (byte)0xde, (byte)0x04, (byte)0xa2, (byte)0xee, (byte)0x48, (byte)0x76, (byte)0xd0, (byte)0x9c, (byte)0x3a,
-    /* B*/ (byte)0x8e, (byte)0x28, (byte)0x64, (byte)0xc2, (byte)0xfc, (byte)0x5a, (byte)0x16, (byte)0xb0, (byte)0x6a, (byte)0xcc, (byte)0x80, (byte)0x26, (byte)0x18, (byte)0xbe, (byte)0xf2, (byte)0x54,
-    /* C*/ (byte)0x22, (byte)0x84, (byte)0xc8, (byte)0x6e, (byte)0x50, (byte)0xf6, (byte)0xba, (byte)0x1c, (byte)0xc6, (byte)0x60, (byte)0x2c, (byte)0x8a, (byte)0xb4, (byte)0x12, (byte)0x5e, (byte)0xf8,
-    /* D*/ (byte)0x4c, (byte)0xea, (byte)0xa6, (byte)0x00, (byte)0x3e, (byte)0x98, (byte)0xd4, (byte)0x72, (byte)0xa8, (byte)0x0e, (byte)0x42, (byte)0xe4, (byte)0xda, (byte)0x7c, (byte)0x30, (byte)0x96,
-    /* E*/ (byte)0xfe, (byte)0x58, (byte)0x14, (byte)0xb2, (byte)0x8c, (byte)0x2a, (byte)0x66, (byte)0xc0, (byte)0x1a, (byte)0xbc, (byte)0xf0, (byte)0x56, (byte)0x68, (byte)0xce, (byte)0x82, (byte)0x24,
-    /* F*/ (byte)0x90, (byte)0x36, (byte)0x7a, (byte)0xdc, (byte)0xe2, (byte)0x44, (byte)0x08, (byte)0xae, (byte)0x74, (byte)0xd2, (byte)0x9e, (byte)0x38, (byte)0x06, (byte)0xa0, (byte)0xec, (byte)0x4a
-    };
-
     private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
 
     private SerialPort port;
     private boolean connected = false;
     protected InputStream in;
     protected OutputStream out;
-    private byte[] frame = new byte[512];
+    private boolean useCts = false;
+    private final Object ctsLock = new Object();
 
     public UartConnection()
     {
@@ -83,20 +85,7 @@ public class UartConnection
     }
 
 
-    public byte getCRCfor(final byte[] buf, int length, final int offset)
-    {
-        byte crc = 0;
-        int pos = offset;
-        while (length > 0)
-        {
-            crc = crc_array[0xff & (buf[pos] ^ crc)];
-            pos = pos + 1;
-            length = length - 1;
-        }
-        return crc;
-    }
-
-    private static String getPortNameFromDescriptor(String data)
+    static String getPortNameFromDescriptor(String data)
     {
         final Scanner sc = new Scanner(data);
         sc.useDelimiter(OPTION_SEPERATOR);
@@ -105,7 +94,7 @@ public class UartConnection
         return res;
     }
 
-    private static int getBaudrateFromDescriptor(String data)
+    static int getBaudrateFromDescriptor(String data)
     {
         final Scanner sc = new Scanner(data);
         sc.useDelimiter(OPTION_SEPERATOR);
@@ -115,7 +104,23 @@ public class UartConnection
         return res;
     }
 
-    private static int getDataBitIdxFromDescriptor(String data)
+    /**
+     * @param data the descriptor
+     * @param baudrate the new baud rate
+     * @return the same descriptor with the baud rate replaced.
+     */
+    static String setBaudrateInDescriptor(String data, int baudrate)
+    {
+        final String[] parts = data.split(OPTION_SEPERATOR, -1);
+        if(2 > parts.length)
+        {
+            return data + OPTION_SEPERATOR + baudrate;
+        }
+        parts[1] = Integer.toString(baudrate);
+        return String.join(OPTION_SEPERATOR, parts);
+    }
+
+    static int getDataBitIdxFromDescriptor(String data)
     {
         final Scanner sc = new Scanner(data);
         sc.useDelimiter(OPTION_SEPERATOR);
@@ -149,7 +154,7 @@ public class UartConnection
         return spDataBits;
     }
 
-    private static int getParityIdxFromDescriptor(String data)
+    static int getParityIdxFromDescriptor(String data)
     {
         final Scanner sc = new Scanner(data);
         sc.useDelimiter(OPTION_SEPERATOR);
@@ -184,7 +189,7 @@ public class UartConnection
         return spParity;
     }
 
-    private static int getStopBitIdxFromDescriptor(String data)
+    static int getStopBitIdxFromDescriptor(String data)
     {
         final Scanner sc = new Scanner(data);
         sc.useDelimiter(OPTION_SEPERATOR);
@@ -218,7 +223,27 @@ public class UartConnection
         return spStopBits;
     }
 
-    private static boolean getRtsCtsInFromDescriptor(String data)
+    /**
+     * @return number of bits on the line for each byte: start bit, data bits, parity bit and stop bits.
+     */
+    static double getBitsPerByteFromDescriptor(String data)
+    {
+        double res = 1; // start bit
+        res = res + 5 + Math.min(getDataBitIdxFromDescriptor(data), bits.length - 1);
+        if(0 != getParityIdxFromDescriptor(data))
+        {
+            res = res + 1;
+        }
+        switch(getStopBitIdxFromDescriptor(data))
+        {
+        case 1: res = res + 1.5; break;
+        case 2: res = res + 2; break;
+        default: res = res + 1; break;
+        }
+        return res;
+    }
+
+    static boolean getRtsCtsInFromDescriptor(String data)
     {
         final Scanner sc = new Scanner(data);
         sc.useDelimiter(OPTION_SEPERATOR);
@@ -228,7 +253,7 @@ public class UartConnection
         sc.next(); // skip parity
         sc.next(); // skip stop bits
         final String help = sc.next();
-        final boolean res = Boolean.getBoolean(help);
+        final boolean res = Boolean.parseBoolean(help);
         sc.close();
         return res;
     }
@@ -244,18 +269,10 @@ public class UartConnection
         {
             flowControl = flowControl | SerialPort.FLOWCONTROL_RTSCTS_OUT;
         }
-        if(true == getXonXoffInFromDescriptor(data))
-        {
-            flowControl = flowControl | SerialPort.FLOWCONTROL_XONXOFF_IN;
-        }
-        if(true == getXonXoffOutFromDescriptor(data))
-        {
-            flowControl = flowControl | SerialPort.FLOWCONTROL_XONXOFF_OUT;
-        }
         return flowControl;
     }
 
-    private static boolean getRtsCtsOutFromDescriptor(String data)
+    static boolean getRtsCtsOutFromDescriptor(String data)
     {
         final Scanner sc = new Scanner(data);
         sc.useDelimiter(OPTION_SEPERATOR);
@@ -266,12 +283,12 @@ public class UartConnection
         sc.next(); // skip stop bits
         sc.next(); // skip RTS / CTS In
         final String help = sc.next();
-        final boolean res = Boolean.getBoolean(help);
+        final boolean res = Boolean.parseBoolean(help);
         sc.close();
         return res;
     }
 
-    private static boolean getXonXoffInFromDescriptor(String data)
+    static boolean getXonXoffInFromDescriptor(String data)
     {
         final Scanner sc = new Scanner(data);
         sc.useDelimiter(OPTION_SEPERATOR);
@@ -283,12 +300,12 @@ public class UartConnection
         sc.next(); // skip RTS / CTS In
         sc.next(); // skip RTS / CTS Out
         final String help = sc.next();
-        final boolean res = Boolean.getBoolean(help);
+        final boolean res = Boolean.parseBoolean(help);
         sc.close();
         return res;
     }
 
-    private static boolean getXonXoffOutFromDescriptor(String data)
+    static boolean getXonXoffOutFromDescriptor(String data)
     {
         final Scanner sc = new Scanner(data);
         sc.useDelimiter(OPTION_SEPERATOR);
@@ -301,14 +318,35 @@ public class UartConnection
         sc.next(); // skip RTS / CTS Out
         sc.next(); // skip Xon / Xoff In
         final String help = sc.next();
-        final boolean res = Boolean.getBoolean(help);
+        final boolean res = Boolean.parseBoolean(help);
         sc.close();
         return res;
     }
 
+    /** XON/XOFF can not be used with the binary frames of the protocol.
+     *
+     * @return true = the descriptor requests XON/XOFF and the connection must not be opened.
+     */
+    static boolean refuseXonXoff(String data, Logger log)
+    {
+        if(   (true == getXonXoffInFromDescriptor(data))
+           || (true == getXonXoffOutFromDescriptor(data)) )
+        {
+            log.error("XON/XOFF flow control is not supported ! The frames contain the bytes 0x11 and 0x13,"
+                    + " the driver would remove them as XON and XOFF. Use RTS/CTS or no flow control.");
+            return true;
+        }
+        return false;
+    }
+
+    @Override
     public boolean establishConnectionTo(String data)
     {
         final String PortName = getPortNameFromDescriptor(data);
+        if(true == refuseXonXoff(data, log))
+        {
+            return false;
+        }
         try
         {
             final CommPortIdentifier portId = CommPortIdentifier.getPortIdentifier(PortName);
@@ -334,15 +372,25 @@ public class UartConnection
             }
             port = (SerialPort)basePort;
             port.setFlowControlMode(getFlowControlFromDescriptor(data));
+            useCts = getRtsCtsOutFromDescriptor(data);
+            if(true == useCts)
+            {
+                watchCts();
+            }
 
             port.setSerialPortParams(getBaudrateFromDescriptor(data),
                                      getSerialPortDataBitFromDescriptor(data),
                                      getSerialPortStopBitFromDescriptor(data),
                                      getSerialPortParityFromDescriptor(data));
 
+            // reads block until at least one byte arrived
+            port.enableReceiveThreshold(1);
+            port.enableReceiveTimeout(RECEIVE_POLL_TIMEOUT_MS);
+
             in = port.getInputStream();
             out = port.getOutputStream();
             connected = true;
+            startReceiving(PortName);
             log.info("Serial Port is open");
             return true;
         }
@@ -365,16 +413,24 @@ public class UartConnection
         return false;
     }
 
+    @Override
     public boolean isConnected()
     {
         return connected;
     }
 
+    @Override
     public boolean close()
     {
         connected = false;
+        stopReceiving();
         if(null != port)
         {
+            if(true == useCts)
+            {
+                port.notifyOnCTS(false);
+                port.removeEventListener();
+            }
             port.close();
             return true;
         }
@@ -388,105 +444,127 @@ public class UartConnection
     {
         return sendRequest(data, 0, data.length);
     }
-    /** sends a request frame to the client.
-    *
-    * @param data the bytes of the frame
-    * @param offset frame bytes starts at this offset in the buffer.
-    * @param length send only this many bytes. May be 0 !
-    * @return true= success false = no reply received - timeout
-    */
-   public boolean sendRequest(final byte[] data, int offset, int length)
-   {
-       try
-       {
-           log.trace("Sending Frame  : " + Tool.fromByteBufferToHexString(data, length, offset));
-           out.write(data);
-           return true;
-       }
-       catch (final IOException e)
-       {
-           e.printStackTrace();
-           log.error("Failed to send Request - Exception !");
-           return false;
-       }
-   }
 
-    public byte[] getFrame()
+    private void watchCts()
     {
-        int pos = 0;
-        int length = 300;
-        int res = getABNonlockingByte(100);
-        if(res == -1)
-        {
-            return null;
-        }
-        if(Protocol.START_OF_CLIENT_FRAME != res)
-        {
-            log.error("Received Invalid Data !");
-            return null;
-        }
-        frame[pos] = (byte)res;
-        pos ++;
-        do
+        try
         {
-            res = getABNonlockingByte(20);
-            if(-1 != res)
+            port.addEventListener(new SerialPortEventListener()
             {
-                frame[pos] = (byte)res;
-                pos ++;
-                if(2 == pos)
-                {
-                    length = res;
-                }
-                else
+                @Override
+                public void serialEvent(SerialPortEvent event)
                 {
-                    if(pos == length + 3)
+                    if(SerialPortEvent.CTS == event.getEventType())
                     {
-                        break;
+                        synchronized(ctsLock)
+                        {
+                            ctsLock.notifyAll();
+                        }
                     }
                 }
-            }
-        }while(res != -1);
-        byte[] recFrame = new byte[pos];
-        for(int i = 0; i < pos; i++)
+            });
+            port.notifyOnCTS(true);
+        }
+        catch(TooManyListenersException e)
+        {
+            // waitForCts() polls as well
+            log.warn("Can not watch CTS - will poll it !");
+        }
+        catch(PureJavaIllegalStateException e)
         {
-            recFrame[i] = (byte)(0xff & frame[i]);
+            // no modem lines (pseudo terminal,..) -> nothing stops us
+            log.warn("Port has no CTS line - ignoring RTS/CTS !");
+            port.removeEventListener();
+            useCts = false;
         }
-        log.trace("Received Frame : " + Tool.fromByteBufferToHexString(recFrame) + " parsed : " + Protocol.parse(recFrame));
-        return recFrame;
     }
 
-    private int getABNonlockingByte(int timeout)
+    /**
+     * @return true = CTS is active; false = CTS stayed inactive for CTS_TIMEOUT_MS.
+     */
+    private boolean waitForCts()
     {
-        int numAvail;
-        try
+        if(true == port.isCTS())
+        {
+            return true;
+        }
+        final long end = System.nanoTime() + 1000000L * CTS_TIMEOUT_MS;
+        synchronized(ctsLock)
         {
-            numAvail = in.available();
-            if(1 > numAvail)
+            while(false == port.isCTS())
             {
-                int timeoutCounter = 0;
-                do
+                final long remaining = end - System.nanoTime();
+                if(0 >= remaining)
                 {
-                    Thread.sleep(1);
-                    timeoutCounter++;
-                    if(timeout < timeoutCounter)
-                    {
-                        return -1;
-                    }
-                    numAvail = in.available();
-                }while(1 > numAvail);
+                    return false;
+                }
+                try
+                {
+                    ctsLock.wait(Math.max(1, Math.min(CTS_POLL_MS, remaining / 1000000)));
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
             }
-            // else a byte is already available
-            return in.read();
         }
-        catch(IOException e)
+        return true;
+    }
+
+   @Override
+   protected boolean writeData(final byte[] data, int offset, int length)
+   {
+       try
+       {
+           if(false == useCts)
+           {
+               out.write(data, offset, length);
+               return true;
+           }
+           int done = 0;
+           while(done < length)
+           {
+               if((true == useCts) && (false == waitForCts()))
+               {
+                   log.error("Failed to send Request - CTS stayed inactive !");
+                   return false;
+               }
+               final int num = Math.min(FLOW_CONTROL_CHUNK_SIZE, length - done);
+               out.write(data, offset + done, num);
+               // blocks until the driver has send the chunk. Blocks longer if the client stopped the transmission.
+               out.flush();
+               done = done + num;
+           }
+           return true;
+       }
+       catch (final IOException e)
+       {
+           e.printStackTrace();
+           log.error("Failed to send Request - Exception !");
+           return false;
+       }
+   }
+
+    /** moves everything that arrived into the receive buffer with one bulk read.
+     *
+     * Blocks until at least one byte arrived or the receive timeout of the port.
+     */
+    @Override
+    protected void receiveData() throws IOException
+    {
+        int num = in.available();
+        if(1 > num)
         {
-            return -1;
+            // nothing there -> block until the next byte arrives
+            num = 1;
         }
-        catch(InterruptedException e)
+        if(   (0 == receiveBuffer.fillFrom(in, num, RECEIVE_POLL_TIMEOUT_MS))
+           && (receiveBuffer.getSize() == receiveBuffer.available()) )
         {
-            return -1;
+            log.warn("Receive Buffer is full !");
         }
+        // 0 or -1 = receive timeout -> nothing happened
     }
 
 }